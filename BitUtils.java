@@ -26,7 +26,10 @@ public class BitUtils {
     }
 
     public static int getDigitOfPlaceN(int value, int N) {
-        return (int)Math.floor(value / Math.pow(10, N-1)) % 10;
+        for (int place = 1; place < N; place++) {
+            value /= 10;
+        }
+        return value % 10;
     }
 
 }
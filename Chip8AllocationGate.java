@@ -0,0 +1,75 @@
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+
+/* Checks that stepping a machine doesn't allocate once it has warmed up.
+   Every sample ROM is run under each execution engine, first to warm up the
+   decode cache, compiled blocks and the JVM's JIT, and then for a measured
+   stretch during which the thread's allocated bytes must not grow. Exits with
+   status 1 if any run allocated, so it can gate a build.
+
+   usage: Chip8AllocationGate [--cycles n] [--warmup n]
+ */
+public class Chip8AllocationGate {
+    private static final int INSTRUCTIONS_PER_RUN = 10_000;
+
+    public static void main(String[] args) {
+        long cycles = 5_000_000;
+        long warmup = 2_000_000;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--cycles":
+                    cycles = Long.parseLong(args[++i]);
+                    break;
+                case "--warmup":
+                    warmup = Long.parseLong(args[++i]);
+                    break;
+                default:
+                    System.err.println(String.format("unknown option %s", args[i]));
+                    System.exit(2);
+            }
+        }
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        if (!threads.isThreadAllocatedMemorySupported()) {
+            System.err.println("thread allocation accounting isn't supported by this JVM");
+            System.exit(2);
+        }
+        threads.setThreadAllocatedMemoryEnabled(true);
+        long thread = Thread.currentThread().getId();
+
+        boolean failed = false;
+        for (Chip8ExecutionEngine engine : Chip8ExecutionEngine.values()) {
+            if (engine == Chip8ExecutionEngine.JIT_CONFORMANCE) {
+                // snapshots a shadow machine per block, which is the point of it
+                continue;
+            }
+            for (int i = 0; i < Chip8SampleRoms.PROGRAMS.length; i++) {
+                Chip8Machine machine = Chip8SampleRoms.machineRunning(Chip8SampleRoms.PROGRAMS[i]);
+                machine.setExecutionEngine(engine);
+                machine.setRandomSeed(i);
+                // counting and publishing metrics each run must not allocate either
+                machine.setMetrics(new Chip8Metrics());
+                runFor(machine, warmup);
+
+                long before = threads.getThreadAllocatedBytes(thread);
+                runFor(machine, cycles);
+                long allocated = threads.getThreadAllocatedBytes(thread) - before;
+                // reading the counter itself allocates nothing, so any growth is the machine's
+                double perInstruction = allocated / (double) cycles;
+                boolean ok = allocated == 0;
+                failed |= !ok;
+                System.out.println(String.format(Locale.ROOT, "%-12s %-11s %,12d instructions %,10d bytes %.6f bytes/instruction %s",
+                        engine.name().toLowerCase(), Chip8SampleRoms.NAMES[i], cycles, allocated, perInstruction,
+                        ok ? "ok" : "ALLOCATES"));
+            }
+        }
+        if (failed) {
+            System.exit(1);
+        }
+    }
+
+    private static void runFor(Chip8Machine machine, long instructions) {
+        for (long done = 0; done < instructions; done += INSTRUCTIONS_PER_RUN) {
+            machine.run(INSTRUCTIONS_PER_RUN);
+        }
+    }
+}
@@ -0,0 +1,264 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/* Runs ROMs headless and in parallel, one Chip8Machine per ROM, and prints a
+   tab separated result line per ROM in the order they were given.
+
+   usage: Chip8BatchRunner <rom directory | manifest> [--threads n] [--frames n] [--ipf n] [--jit] [--metrics]
+                           [--keys script] [--trace dir] [--quirks profile]
+
+   A manifest lists one ROM path per line, optionally followed by that ROM's
+   own frame budget, instructions per frame and Chip8QuirkProfile, so a
+   library of ROMs for different interpreters runs in one batch. Relative paths are resolved
+   against the manifest's directory; blank lines and lines starting with #
+   are ignored. With --metrics every machine reports to Chip8MetricsBean.
+   --keys feeds every ROM the same key presses, see Chip8ScriptedInput.
+   --trace writes a Chip8Tracer trace per ROM into dir, named after the ROM.
+ */
+public class Chip8BatchRunner {
+    public static final int DEFAULT_FRAMES = 600;
+
+    public static final class Job {
+        public final Path rom;
+        public final int frames;
+        public final int instructionsPerFrame;
+        public final Chip8QuirkProfile quirks;
+
+        public Job(Path rom, int frames, int instructionsPerFrame, Chip8QuirkProfile quirks) {
+            this.rom = rom;
+            this.frames = frames;
+            this.instructionsPerFrame = instructionsPerFrame;
+            this.quirks = quirks;
+        }
+
+        public Job(Path rom, int frames, int instructionsPerFrame) {
+            this(rom, frames, instructionsPerFrame, Chip8QuirkProfile.DEFAULT);
+        }
+    }
+
+    public static final class Result {
+        public final Path rom;
+        public final String status;
+        public final long instructions;
+        public final int frames;
+        public final long wallNanos;
+        public final long framebufferHash;
+
+        Result(Path rom, String status, long instructions, int frames, long wallNanos, long framebufferHash) {
+            this.rom = rom;
+            this.status = status;
+            this.instructions = instructions;
+            this.frames = frames;
+            this.wallNanos = wallNanos;
+            this.framebufferHash = framebufferHash;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s\t%s\t%d\t%d\t%.3f\t%016x", rom, status, instructions, frames,
+                    wallNanos / 1.0E6, framebufferHash);
+        }
+    }
+
+    private final int threads;
+    private final Chip8ExecutionEngine engine;
+    private boolean metrics = false;
+    private String keyScript;
+    private Path traceDirectory;
+
+    public Chip8BatchRunner(int threads, Chip8ExecutionEngine engine) {
+        this.threads = threads;
+        this.engine = engine;
+    }
+
+    public void setMetrics(boolean metrics) {
+        this.metrics = metrics;
+    }
+
+    /* writes a trace of every ROM into directory, or none when null */
+    public void setTraceDirectory(Path traceDirectory) {
+        this.traceDirectory = traceDirectory;
+    }
+
+    /* a Chip8ScriptedInput script run against every ROM, or null for no input */
+    public void setKeyScript(String keyScript) {
+        if (keyScript != null) {
+            // parsed here too so a bad script fails once rather than in every job
+            new Chip8ScriptedInput(keyScript);
+        }
+        this.keyScript = keyScript;
+    }
+
+    /* runs every job and returns the results in the same order */
+    public List<Result> run(List<Job> jobs) {
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            List<ForkJoinTask<Result>> tasks = new ArrayList<>();
+            for (Job job : jobs) {
+                tasks.add(pool.submit(() -> runJob(job)));
+            }
+            List<Result> results = new ArrayList<>();
+            for (ForkJoinTask<Result> task : tasks) {
+                results.add(task.join());
+            }
+            return results;
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    public Result runJob(Job job) {
+        long start = System.nanoTime();
+        Chip8Machine machine;
+        try {
+            // every job running the same file shares the mapped ROM
+            machine = Chip8Machine.mappingRom(job.rom, job.quirks);
+        } catch (IOException e) {
+            return new Result(job.rom, String.format("unreadable: %s", e.getMessage()), 0, 0, 0, 0);
+        } catch (IllegalArgumentException e) {
+            return new Result(job.rom, String.format("fault: %s", e), 0, 0, 0, 0);
+        }
+        machine.setExecutionEngine(engine);
+        machine.getTimers().setCycleMode(job.instructionsPerFrame);
+        Chip8InputSource input = keyScript != null ? new Chip8ScriptedInput(keyScript) : null;
+        Chip8Metrics machineMetrics = metrics ? new Chip8Metrics().register() : null;
+        machine.setMetrics(machineMetrics);
+        String status = "ok";
+        int frame = 0;
+        Chip8Tracer tracer = null;
+        try {
+            if (traceDirectory != null) {
+                tracer = new Chip8Tracer(traceDirectory.resolve(job.rom.getFileName() + ".trace"));
+                machine.setTracer(tracer);
+            }
+            for (; frame < job.frames; frame++) {
+                long frameStart = machineMetrics != null ? System.nanoTime() : 0;
+                if (input != null) {
+                    input.update(machine.getKeyPad(), frame);
+                }
+                machine.run(job.instructionsPerFrame);
+                if (machineMetrics != null) {
+                    machineMetrics.getFrameTimes().record(System.nanoTime() - frameStart);
+                }
+            }
+        } catch (RuntimeException e) {
+            status = String.format("fault: %s", e);
+        } catch (IOException e) {
+            status = String.format("untraceable: %s", e.getMessage());
+        } finally {
+            if (machineMetrics != null) {
+                machineMetrics.unregister();
+            }
+            if (tracer != null) {
+                try {
+                    tracer.close();
+                } catch (IOException e) {
+                    status = String.format("trace failed: %s", e.getMessage());
+                }
+            }
+        }
+        return new Result(job.rom, status, machine.getCycles(), frame, System.nanoTime() - start,
+                machine.getScreenData().contentHash());
+    }
+
+    public static List<Job> readJobs(Path source, int frames, int instructionsPerFrame) throws IOException {
+        return readJobs(source, frames, instructionsPerFrame, Chip8QuirkProfile.DEFAULT);
+    }
+
+    /* reads a manifest, or lists a directory, into jobs using the given defaults */
+    public static List<Job> readJobs(Path source, int frames, int instructionsPerFrame, Chip8QuirkProfile quirks)
+            throws IOException {
+        List<Job> jobs = new ArrayList<>();
+        if (Files.isDirectory(source)) {
+            try (Stream<Path> roms = Files.list(source)) {
+                for (Path rom : roms.filter(Files::isRegularFile).sorted().collect(Collectors.toList())) {
+                    jobs.add(new Job(rom, frames, instructionsPerFrame, quirks));
+                }
+            }
+            return jobs;
+        }
+        Path base = source.toAbsolutePath().getParent();
+        for (String line : Files.readAllLines(source)) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] fields = line.split("\\s+");
+            jobs.add(new Job(base.resolve(fields[0]),
+                    fields.length > 1 ? Integer.parseInt(fields[1]) : frames,
+                    fields.length > 2 ? Integer.parseInt(fields[2]) : instructionsPerFrame,
+                    fields.length > 3 ? Chip8QuirkProfile.named(fields[3]) : quirks));
+        }
+        return jobs;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("usage: Chip8BatchRunner <rom directory | manifest> [--threads n] [--frames n] [--ipf n] [--jit] [--metrics] [--keys script] [--trace dir] [--quirks profile]");
+            System.exit(2);
+        }
+        int threads = Runtime.getRuntime().availableProcessors();
+        int frames = DEFAULT_FRAMES;
+        int instructionsPerFrame = Chip8Scheduler.DEFAULT_INSTRUCTIONS_PER_FRAME;
+        Chip8ExecutionEngine engine = Chip8ExecutionEngine.INTERPRETER;
+        boolean metrics = false;
+        String keys = null;
+        Path traces = null;
+        Chip8QuirkProfile quirks = Chip8QuirkProfile.DEFAULT;
+        for (int i = 1; i < args.length; i++) {
+            switch (args[i]) {
+                case "--threads":
+                    threads = Integer.parseInt(args[++i]);
+                    break;
+                case "--frames":
+                    frames = Integer.parseInt(args[++i]);
+                    break;
+                case "--ipf":
+                    instructionsPerFrame = Integer.parseInt(args[++i]);
+                    break;
+                case "--jit":
+                    engine = Chip8ExecutionEngine.JIT;
+                    break;
+                case "--metrics":
+                    metrics = true;
+                    break;
+                case "--keys":
+                    keys = args[++i];
+                    break;
+                case "--trace":
+                    traces = Paths.get(args[++i]);
+                    break;
+                case "--quirks":
+                    quirks = Chip8QuirkProfile.named(args[++i]);
+                    break;
+                default:
+                    System.err.println(String.format("unknown option %s", args[i]));
+                    System.exit(2);
+            }
+        }
+        List<Job> jobs = readJobs(Paths.get(args[0]), frames, instructionsPerFrame, quirks);
+        long start = System.nanoTime();
+        Chip8BatchRunner runner = new Chip8BatchRunner(threads, engine);
+        runner.setMetrics(metrics);
+        runner.setKeyScript(keys);
+        runner.setTraceDirectory(traces);
+        List<Result> results = runner.run(jobs);
+        long elapsed = System.nanoTime() - start;
+        System.out.println("rom\tstatus\tinstructions\tframes\twall_ms\tframebuffer_hash");
+        long instructions = 0;
+        for (Result result : results) {
+            System.out.println(result);
+            instructions += result.instructions;
+        }
+        System.err.println(String.format("%d roms, %d instructions in %.3f s on %d threads", results.size(),
+                instructions, elapsed / 1.0E9, threads));
+    }
+}
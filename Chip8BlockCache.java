@@ -0,0 +1,71 @@
+/* Compiled blocks indexed by their start address. An address is only
+   compiled once it has been entered COMPILE_THRESHOLD times, and every byte a
+   block was compiled from is flagged in Chip8Memory so a write to it drops
+   the block again.
+ */
+final class Chip8BlockCache {
+    private static final int COMPILE_THRESHOLD = 16;
+    private static final int MAX_BLOCK_BYTES = 2 * Chip8BlockCompiler.MAX_BLOCK_INSTRUCTIONS;
+
+    // stands in for addresses whose first instruction has to be interpreted
+    private static final Chip8CompiledBlock INTERPRETED = machine -> {
+        throw new IllegalStateException("interpreted addresses have no compiled code");
+    };
+
+    private final Chip8Memory memory;
+    private final Chip8BlockCompiler compiler;
+    private final Chip8CompiledBlock[] blocks;
+    private final byte[] lengths;
+    private final byte[] hits;
+
+    Chip8BlockCache(Chip8Memory memory, Chip8BlockCompiler compiler) {
+        this.memory = memory;
+        this.compiler = compiler;
+        blocks = new Chip8CompiledBlock[memory.getSize()];
+        lengths = new byte[memory.getSize()];
+        hits = new byte[memory.getSize()];
+        memory.setBlockCache(this);
+    }
+
+    /* returns the block starting at pc, or null if pc should be interpreted */
+    Chip8CompiledBlock lookup(int pc) {
+        Chip8CompiledBlock block = blocks[pc];
+        if (block == null) {
+            if (hits[pc] < COMPILE_THRESHOLD) {
+                hits[pc]++;
+                return null;
+            }
+            block = compile(pc);
+        }
+        return block == INTERPRETED ? null : block;
+    }
+
+    int lengthAt(int pc) {
+        return lengths[pc];
+    }
+
+    private Chip8CompiledBlock compile(int pc) {
+        int length = Chip8BlockCompiler.blockLength(memory, pc);
+        Chip8CompiledBlock block;
+        if (length == 0) {
+            block = INTERPRETED;
+            length = 1;
+        } else {
+            block = compiler.compile(memory, pc, length);
+        }
+        blocks[pc] = block;
+        lengths[pc] = (byte) length;
+        memory.markCode(pc, Math.min(pc + 2 * length, memory.getSize()));
+        return block;
+    }
+
+    /* called by Chip8Memory when a flagged byte is written */
+    void invalidate(int idx) {
+        for (int pc = Math.max(0, idx - MAX_BLOCK_BYTES + 1); pc <= idx; pc++) {
+            if (blocks[pc] != null && pc + 2 * lengths[pc] > idx) {
+                blocks[pc] = null;
+                hits[pc] = 0;
+            }
+        }
+    }
+}
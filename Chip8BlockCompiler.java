@@ -0,0 +1,298 @@
+import java.io.ByteArrayOutputStream;
+import java.lang.invoke.MethodHandles;
+
+/* Compiles straight-line runs of chip8 instructions into hidden classes that
+   work directly on Chip8Machine's registers and memory. A block stops before
+   the first instruction that jumps, skips, calls, returns, draws, or touches
+   the timers, keypad or random number generator, so the generated code never
+   branches. Stores to memory always end a block, so a block that rewrites
+   code is invalidated before anything runs the rewritten bytes.
+ */
+final class Chip8BlockCompiler {
+    public static final int MAX_BLOCK_INSTRUCTIONS = 32;
+
+    private static final String MACHINE = "Chip8Machine";
+    private static final String MEMORY = "Chip8Memory";
+
+    // locals of the generated execute(Chip8Machine) method
+    private static final int MACHINE_LOCAL = 1;
+    private static final int V_LOCAL = 2;
+    private static final int MEMORY_LOCAL = 3;
+    private static final int TEMP_LOCAL = 4;
+    private static final int FLAG_LOCAL = 5;
+
+    private final MethodHandles.Lookup lookup;
+
+    Chip8BlockCompiler(MethodHandles.Lookup lookup) {
+        this.lookup = lookup;
+    }
+
+    /* returns the number of instructions from pc onwards that can go in one block */
+    static int blockLength(Chip8Memory memory, int pc) {
+        int length = 0;
+        int address = pc;
+        while (length < MAX_BLOCK_INSTRUCTIONS && address + 1 < memory.getSize()) {
+            int handler = memory.getDecodedInstructionAt(address).handler;
+            if (!isCompilable(handler)) {
+                break;
+            }
+            length++;
+            address += 2;
+            if (endsBlock(handler)) {
+                break;
+            }
+        }
+        return length;
+    }
+
+    private static boolean isCompilable(int handler) {
+        switch (handler) {
+            case Chip8Instruction.LD_VX_KK:
+            case Chip8Instruction.ADD_VX_KK:
+            case Chip8Instruction.LD_VX_VY:
+            case Chip8Instruction.OR_VX_VY:
+            case Chip8Instruction.AND_VX_VY:
+            case Chip8Instruction.XOR_VX_VY:
+            case Chip8Instruction.OR_VX_VY_RESET_VF:
+            case Chip8Instruction.AND_VX_VY_RESET_VF:
+            case Chip8Instruction.XOR_VX_VY_RESET_VF:
+            case Chip8Instruction.ADD_VX_VY:
+            case Chip8Instruction.SUB_VX_VY:
+            case Chip8Instruction.SHR_VX:
+            case Chip8Instruction.SUBN_VX_VY:
+            case Chip8Instruction.SHL_VX:
+            case Chip8Instruction.LD_I_NNN:
+            case Chip8Instruction.ADD_I_VX:
+            case Chip8Instruction.LD_F_VX:
+            case Chip8Instruction.LD_B_VX:
+            case Chip8Instruction.LD_MEM_VX:
+            case Chip8Instruction.LD_VX_MEM:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static boolean endsBlock(int handler) {
+        return handler == Chip8Instruction.LD_B_VX || handler == Chip8Instruction.LD_MEM_VX;
+    }
+
+    Chip8CompiledBlock compile(Chip8Memory memory, int pc, int length) {
+        Chip8ClassWriter writer = new Chip8ClassWriter("Chip8Block", "java/lang/Object", "Chip8CompiledBlock");
+        Code init = new Code(writer);
+        init.op(0x2a); // aload_0
+        init.op(0xb7).u2(writer.methodRef("java/lang/Object", "<init>", "()V")); // invokespecial
+        init.op(0xb1); // return
+        writer.addMethod(0x0001, "<init>", "()V", 1, 1, init.toByteArray());
+
+        Code code = new Code(writer);
+        code.aload(MACHINE_LOCAL).getMachineField("V", "[S").astore(V_LOCAL);
+        code.aload(MACHINE_LOCAL).getMachineField("memory", "L" + MEMORY + ";").astore(MEMORY_LOCAL);
+        for (int i = 0; i < length; i++) {
+            emit(code, memory.getDecodedInstructionAt(pc + 2 * i));
+        }
+        // leave PC on the last instruction with incrementPC set, exactly as step would
+        code.aload(MACHINE_LOCAL).push(pc + 2 * (length - 1)).op(0x92).putMachineField("PC", "C");
+        code.aload(MACHINE_LOCAL).push(1).putMachineField("incrementPC", "Z");
+        code.op(0xb1); // return
+        writer.addMethod(0x0001, "execute", "(L" + MACHINE + ";)V", 8, 6, code.toByteArray());
+
+        try {
+            Class<?> blockClass = lookup.defineHiddenClass(writer.toByteArray(), true,
+                    MethodHandles.Lookup.ClassOption.NESTMATE).lookupClass();
+            return (Chip8CompiledBlock) blockClass.getConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(String.format("could not compile block at %x", pc), e);
+        }
+    }
+
+    private static void emit(Code code, Chip8Instruction instruction) {
+        int x = instruction.x;
+        int y = instruction.y;
+        switch (instruction.handler) {
+            case Chip8Instruction.LD_VX_KK:
+                code.startV(x).push(instruction.kk).storeV();
+                break;
+            case Chip8Instruction.ADD_VX_KK:
+                code.startV(x).loadV(x).push(instruction.kk).op(0x60).push(0xff).op(0x7e).storeV();
+                break;
+            case Chip8Instruction.LD_VX_VY:
+                code.startV(x).loadV(y).storeV();
+                break;
+            case Chip8Instruction.OR_VX_VY:
+                code.startV(x).loadV(x).loadV(y).op(0x80).storeV();
+                break;
+            case Chip8Instruction.AND_VX_VY:
+                code.startV(x).loadV(x).loadV(y).op(0x7e).storeV();
+                break;
+            case Chip8Instruction.XOR_VX_VY:
+                code.startV(x).loadV(x).loadV(y).op(0x82).storeV();
+                break;
+            case Chip8Instruction.OR_VX_VY_RESET_VF:
+                code.startV(x).loadV(x).loadV(y).op(0x80).storeV();
+                code.startV(0xF).push(0).storeV();
+                break;
+            case Chip8Instruction.AND_VX_VY_RESET_VF:
+                code.startV(x).loadV(x).loadV(y).op(0x7e).storeV();
+                code.startV(0xF).push(0).storeV();
+                break;
+            case Chip8Instruction.XOR_VX_VY_RESET_VF:
+                code.startV(x).loadV(x).loadV(y).op(0x82).storeV();
+                code.startV(0xF).push(0).storeV();
+                break;
+            case Chip8Instruction.ADD_VX_VY:
+                // the sum is at most 510 so the carry is bit 8
+                code.loadV(x).loadV(y).op(0x60).istore(TEMP_LOCAL);
+                code.iload(TEMP_LOCAL).push(8).op(0x7a).istore(FLAG_LOCAL);
+                code.startV(x).iload(TEMP_LOCAL).push(0xff).op(0x7e).storeV();
+                storeFlag(code);
+                break;
+            case Chip8Instruction.SUB_VX_VY:
+                // Vx - Vy is negative exactly when it borrows, so the flag is its sign bit flipped
+                code.loadV(x).loadV(y).op(0x64).push(31).op(0x7c).push(1).op(0x82).istore(FLAG_LOCAL);
+                code.startV(x).loadV(x).loadV(y).op(0x64).push(0xff).op(0x7e).storeV();
+                storeFlag(code);
+                break;
+            case Chip8Instruction.SHR_VX:
+                // y is x unless the quirks shift Vy
+                code.loadV(y).push(1).op(0x7e).istore(FLAG_LOCAL);
+                code.startV(x).loadV(y).push(1).op(0x7a).storeV();
+                storeFlag(code);
+                break;
+            case Chip8Instruction.SUBN_VX_VY:
+                code.loadV(y).loadV(x).op(0x64).push(31).op(0x7c).push(1).op(0x82).istore(FLAG_LOCAL);
+                code.startV(x).loadV(y).loadV(x).op(0x64).push(0xff).op(0x7e).storeV();
+                storeFlag(code);
+                break;
+            case Chip8Instruction.SHL_VX:
+                code.loadV(y).push(7).op(0x7a).istore(FLAG_LOCAL);
+                code.startV(x).loadV(y).push(1).op(0x78).push(0xff).op(0x7e).storeV();
+                storeFlag(code);
+                break;
+            case Chip8Instruction.LD_I_NNN:
+                code.aload(MACHINE_LOCAL).push(instruction.nnn).putMachineField("I", "C");
+                break;
+            case Chip8Instruction.ADD_I_VX:
+                code.aload(MACHINE_LOCAL).loadI().loadV(x).op(0x60).op(0x92).putMachineField("I", "C");
+                break;
+            case Chip8Instruction.LD_F_VX:
+                code.aload(MACHINE_LOCAL).push(5).loadV(x).op(0x68).op(0x92).putMachineField("I", "C");
+                break;
+            case Chip8Instruction.LD_B_VX:
+                code.aload(MEMORY_LOCAL).loadI().loadV(x).push(100).op(0x6c).op(0x93).writeMemory();
+                code.aload(MEMORY_LOCAL).loadI().push(1).op(0x60).loadV(x).push(10).op(0x6c).push(10).op(0x70).op(0x93).writeMemory();
+                code.aload(MEMORY_LOCAL).loadI().push(2).op(0x60).loadV(x).push(10).op(0x70).op(0x93).writeMemory();
+                break;
+            case Chip8Instruction.LD_MEM_VX:
+                for (int i = 0; i <= x; i++) {
+                    code.aload(MEMORY_LOCAL).loadI().push(i).op(0x60).loadV(i).writeMemory();
+                }
+                advanceI(code, instruction.indexIncrement);
+                break;
+            case Chip8Instruction.LD_VX_MEM:
+                for (int i = 0; i <= x; i++) {
+                    code.startV(i).aload(MEMORY_LOCAL).loadI().push(i).op(0x60).readMemory().storeV();
+                }
+                advanceI(code, instruction.indexIncrement);
+                break;
+            default:
+                throw new IllegalArgumentException(String.format("cannot compile %x", instruction.opcode));
+        }
+    }
+
+    // the flag is worked out from the operands before Vx is stored and written
+    // after it, so VF ends up holding the flag even when it is Vx or Vy
+    private static void storeFlag(Code code) {
+        code.startV(0xF).iload(FLAG_LOCAL).storeV();
+    }
+
+    // the quirk is settled at decode time, so a block only has code for it when I moves
+    private static void advanceI(Code code, int increment) {
+        if (increment != 0) {
+            code.aload(MACHINE_LOCAL).loadI().push(increment).op(0x60).op(0x92).putMachineField("I", "C");
+        }
+    }
+
+    /* A bytecode buffer with helpers for the handful of shapes the compiler emits */
+    private static final class Code {
+        private final Chip8ClassWriter writer;
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        Code(Chip8ClassWriter writer) {
+            this.writer = writer;
+        }
+
+        Code op(int opcode) {
+            bytes.write(opcode);
+            return this;
+        }
+
+        Code u2(int value) {
+            bytes.write(value >> 8);
+            bytes.write(value);
+            return this;
+        }
+
+        Code push(int value) {
+            if (value >= -1 && value <= 5) {
+                return op(0x03 + value); // iconst_<n>
+            } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+                return op(0x10).op(value & 0xff); // bipush
+            }
+            return op(0x11).u2(value & 0xffff); // sipush
+        }
+
+        Code aload(int local) {
+            return op(0x2a + local);
+        }
+
+        Code astore(int local) {
+            return op(0x4b + local);
+        }
+
+        Code iload(int local) {
+            return op(0x15).op(local);
+        }
+
+        Code istore(int local) {
+            return op(0x36).op(local);
+        }
+
+        Code getMachineField(String name, String descriptor) {
+            return op(0xb4).u2(writer.fieldRef(MACHINE, name, descriptor));
+        }
+
+        Code putMachineField(String name, String descriptor) {
+            return op(0xb5).u2(writer.fieldRef(MACHINE, name, descriptor));
+        }
+
+        // pushes V and the register index, ready for a value and storeV
+        Code startV(int register) {
+            return aload(V_LOCAL).push(register);
+        }
+
+        Code storeV() {
+            return op(0x56); // sastore
+        }
+
+        Code loadV(int register) {
+            return aload(V_LOCAL).push(register).op(0x35); // saload
+        }
+
+        Code loadI() {
+            return aload(MACHINE_LOCAL).getMachineField("I", "C");
+        }
+
+        Code writeMemory() {
+            return op(0xb6).u2(writer.methodRef(MEMORY, "writeMemory", "(IS)V"));
+        }
+
+        Code readMemory() {
+            return op(0xb6).u2(writer.methodRef(MEMORY, "readMemory", "(I)S"));
+        }
+
+        byte[] toByteArray() {
+            return bytes.toByteArray();
+        }
+    }
+}
@@ -0,0 +1,52 @@
+/* Drives Chip8Machine through compiled blocks, falling back to the
+   interpreter for cold code and for anything Chip8BlockCompiler won't take.
+   In conformance mode every block is also run on a shadow machine through
+   the interpreter and the two states are compared afterwards.
+ */
+final class Chip8BlockEngine {
+    private final Chip8Machine machine;
+    private final Chip8Memory memory;
+    private final Chip8BlockCache cache;
+    private final Chip8Machine shadow;
+
+    Chip8BlockEngine(Chip8Machine machine, Chip8Memory memory, boolean conformance) {
+        this.machine = machine;
+        this.memory = memory;
+        this.cache = new Chip8BlockCache(memory, new Chip8BlockCompiler(Chip8Machine.jitLookup()));
+        this.shadow = conformance ? new Chip8Machine(machine.getQuirks()) : null;
+    }
+
+    /* runs one block or one interpreted instruction and returns how many
+       instructions that was; blocks longer than limit are interpreted instead */
+    int step(int limit) {
+        int pc = machine.nextInstructionAddress();
+        Chip8CompiledBlock block = cache.lookup(pc);
+        int length = block == null ? 1 : cache.lengthAt(pc);
+        if (block == null || length > limit) {
+            machine.interpret();
+            return 1;
+        }
+        machine.advanceCycles(length);
+        Chip8Metrics metrics = machine.getMetrics();
+        if (metrics != null) {
+            for (int i = 0; i < length; i++) {
+                metrics.instructionExecuted(memory.getDecodedInstructionAt(pc + 2 * i).opcode);
+            }
+        }
+        if (shadow == null) {
+            block.execute(machine);
+        } else {
+            shadow.copyStateFrom(machine);
+            block.execute(machine);
+            for (int i = 0; i < length; i++) {
+                shadow.interpret();
+            }
+            String difference = machine.compareState(shadow);
+            if (difference != null) {
+                throw new IllegalStateException(String.format("compiled block at %x diverged from the interpreter: %s",
+                        pc, difference));
+            }
+        }
+        return length;
+    }
+}
@@ -0,0 +1,7 @@
+/* A straight-line run of chip8 instructions compiled to JVM bytecode by
+   Chip8BlockCompiler. execute leaves the machine exactly as if step had
+   interpreted every instruction in the block.
+ */
+public interface Chip8CompiledBlock {
+    void execute(Chip8Machine machine);
+}
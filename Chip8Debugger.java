@@ -0,0 +1,209 @@
+import java.util.Arrays;
+
+/* Runs a machine an instruction at a time until it reaches a breakpoint, an
+   instruction from a watched opcode family, a watched memory access or a
+   change to a watched register. The debugger drives the machine itself
+   rather than the machine checking for breakpoints, so Chip8Machine.run
+   costs the same with a debugger attached as without; breakpoints only stop
+   runs the debugger makes.
+
+   Memory watches are per address flags in Chip8Memory. Writes check the
+   flags already; reads only take the checked path while at least one
+   address is watched for reads.
+
+     Chip8Debugger debugger = new Chip8Debugger(machine);
+     debugger.breakOnOpcode(0xf000, 0xd000);     every DRW
+     debugger.watchMemory(0x3f0, false, true);
+     Chip8Debugger.Stop stop = debugger.run(1_000_000);
+ */
+public class Chip8Debugger {
+    public enum Reason {
+        BREAKPOINT,
+        OPCODE,
+        READ,
+        WRITE,
+        REGISTER,
+        // ran the number of instructions asked for without stopping
+        LIMIT
+    }
+
+    /* Why a run stopped. For BREAKPOINT and OPCODE the instruction at address
+       is about to run; for the others the instruction at address has just run. */
+    public static final class Stop {
+        public final Reason reason;
+        public final int address;
+        // the opcode for OPCODE, the memory address for READ and WRITE, the register for REGISTER
+        public final int detail;
+        public final long instructions;
+        // the mnemonic of the instruction at address, in the machine's instruction set
+        public final String instruction;
+
+        private Stop(Reason reason, int address, int detail, long instructions, String instruction) {
+            this.reason = reason;
+            this.address = address;
+            this.detail = detail;
+            this.instructions = instructions;
+            this.instruction = instruction;
+        }
+
+        @Override
+        public String toString() {
+            switch (reason) {
+                case OPCODE:
+                    return String.format("%s %04x at %x (%s) after %d instructions", reason, detail, address, instruction, instructions);
+                case READ:
+                case WRITE:
+                    return String.format("%s of %x at %x (%s) after %d instructions", reason, detail, address, instruction, instructions);
+                case REGISTER:
+                    return String.format("%s V%X at %x (%s) after %d instructions", reason, detail, address, instruction, instructions);
+                default:
+                    return String.format("%s at %x (%s) after %d instructions", reason, address, instruction, instructions);
+            }
+        }
+    }
+
+    private final Chip8Machine machine;
+    private final Chip8Memory memory;
+    // bit a % 64 of word a / 64 is set for a breakpoint at a
+    private final long[] breakpoints;
+    private int[] opcodeMasks = new int[0];
+    private int[] opcodeValues = new int[0];
+    // bit x is set while Vx is watched
+    private int watchedRegisters;
+    private final int[] registerValues = new int[Chip8Machine.NUM_REGISTERS];
+    // the first watched access made by the instruction running, or -1
+    private int accessed = -1;
+    private boolean accessWasWrite;
+
+    public Chip8Debugger(Chip8Machine machine) {
+        this.machine = machine;
+        memory = machine.getMemory();
+        breakpoints = new long[(memory.getSize() + 63) >> 6];
+        memory.setDebugger(this);
+    }
+
+    public void addBreakpoint(int address) {
+        breakpoints[address >> 6] |= 1L << address;
+    }
+
+    public void removeBreakpoint(int address) {
+        breakpoints[address >> 6] &= ~(1L << address);
+    }
+
+    /* stops before any instruction whose opcode ANDed with mask is value,
+       e.g. 0xf000, 0xd000 for every DRW or 0xf0ff, 0xf055 for every LD [I], Vx */
+    public void breakOnOpcode(int mask, int value) {
+        int count = opcodeMasks.length;
+        opcodeMasks = Arrays.copyOf(opcodeMasks, count + 1);
+        opcodeValues = Arrays.copyOf(opcodeValues, count + 1);
+        opcodeMasks[count] = mask & 0xffff;
+        opcodeValues[count] = value & mask & 0xffff;
+    }
+
+    public void clearOpcodeBreaks() {
+        opcodeMasks = new int[0];
+        opcodeValues = new int[0];
+    }
+
+    /* stops after an instruction reads or writes address, as asked; false for both stops watching it */
+    public void watchMemory(int address, boolean read, boolean write) {
+        memory.setWatch(address, read, write);
+    }
+
+    /* stops after an instruction changes Vx */
+    public void watchRegister(int x, boolean watch) {
+        if (x < 0 || x >= Chip8Machine.NUM_REGISTERS) {
+            throw new IndexOutOfBoundsException(String.format("V%d is not a register", x));
+        }
+        watchedRegisters = watch ? watchedRegisters | (1 << x) : watchedRegisters & ~(1 << x);
+    }
+
+    /* runs exactly one instruction */
+    public Stop step() {
+        return run(1);
+    }
+
+    /* runs until the instruction at address is about to run, or anything else stops it */
+    public Stop runUntil(int address, long maxInstructions) {
+        boolean alreadySet = (breakpoints[address >> 6] & (1L << address)) != 0;
+        addBreakpoint(address);
+        try {
+            return run(maxInstructions);
+        } finally {
+            if (!alreadySet) {
+                removeBreakpoint(address);
+            }
+        }
+    }
+
+    /* Runs up to maxInstructions instructions, stopping at the first
+       breakpoint, opcode, watched access or register change. The instruction
+       at the current PC always runs, so a run started at a breakpoint gets
+       past it. Faults propagate as they do from Chip8Machine.run. */
+    public Stop run(long maxInstructions) {
+        long executed = 0;
+        while (executed < maxInstructions) {
+            int pc = machine.nextInstructionAddress();
+            if (executed > 0) {
+                if ((breakpoints[pc >> 6] & (1L << pc)) != 0) {
+                    return stop(Reason.BREAKPOINT, pc, 0, executed);
+                }
+                if (opcodeMasks.length > 0 && pc + 1 < memory.getSize()) {
+                    int opcode = memory.getInstructionAt(pc) & 0xffff;
+                    for (int i = 0; i < opcodeMasks.length; i++) {
+                        if ((opcode & opcodeMasks[i]) == opcodeValues[i]) {
+                            return stop(Reason.OPCODE, pc, opcode, executed);
+                        }
+                    }
+                }
+            }
+            for (int watched = watchedRegisters; watched != 0; watched &= watched - 1) {
+                int x = Integer.numberOfTrailingZeros(watched);
+                registerValues[x] = machine.getRegister(x);
+            }
+            accessed = -1;
+            executed += machine.step(1);
+            if (accessed >= 0) {
+                return stop(accessWasWrite ? Reason.WRITE : Reason.READ, pc, accessed, executed);
+            }
+            for (int watched = watchedRegisters; watched != 0; watched &= watched - 1) {
+                int x = Integer.numberOfTrailingZeros(watched);
+                if (machine.getRegister(x) != registerValues[x]) {
+                    return stop(Reason.REGISTER, pc, x, executed);
+                }
+            }
+        }
+        return stop(Reason.LIMIT, machine.nextInstructionAddress(), 0, executed);
+    }
+
+    private Stop stop(Reason reason, int address, int detail, long instructions) {
+        machine.publishMetrics();
+        String instruction = address + 1 < memory.getSize()
+                ? Chip8Machine.getInstructionString(memory.getInstructionAt(address), machine.getQuirks())
+                : "";
+        return new Stop(reason, address, detail, instructions, instruction);
+    }
+
+    /* stops the memory reporting to this debugger and drops its watches */
+    public void detach() {
+        for (int address = 0; address < memory.getSize(); address++) {
+            memory.setWatch(address, false, false);
+        }
+        memory.setDebugger(null);
+    }
+
+    // called by Chip8Memory for watched addresses
+    void memoryRead(int idx) {
+        if (accessed < 0) {
+            accessed = idx;
+            accessWasWrite = false;
+        }
+    }
+
+    void memoryWritten(int idx) {
+        if (accessed < 0) {
+            accessed = idx;
+            accessWasWrite = true;
+        }
+    }
+}
@@ -0,0 +1,40 @@
+import java.nio.ByteBuffer;
+
+/* Memory in a direct ByteBuffer outside the Java heap, so thousands of
+   resident machines don't add to what the garbage collector has to trace.
+ */
+public class Chip8DirectMemoryStore implements Chip8MemoryStore {
+    private final ByteBuffer buffer;
+
+    public Chip8DirectMemoryStore(int size) {
+        buffer = ByteBuffer.allocateDirect(size);
+    }
+
+    @Override
+    public int size() {
+        return buffer.capacity();
+    }
+
+    @Override
+    public int get(int idx) {
+        return buffer.get(idx) & 0xff;
+    }
+
+    @Override
+    public void set(int idx, int value) {
+        buffer.put(idx, (byte) value);
+    }
+
+    @Override
+    public void load(int offset, ByteBuffer src) {
+        int length = src.remaining();
+        buffer.put(offset, src, src.position(), length);
+        src.position(src.position() + length);
+    }
+
+    @Override
+    public void save(ByteBuffer dest) {
+        dest.put(dest.position(), buffer, 0, buffer.capacity());
+        dest.position(dest.position() + buffer.capacity());
+    }
+}
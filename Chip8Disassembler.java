@@ -0,0 +1,474 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/* Turns opcodes into mnemonics. The mnemonic for every one of the 65536
+   opcodes is built once per instruction set, on first use, so looking one
+   up is an array read; SUPER-CHIP and XO-CHIP name the opcodes they add and
+   share the plain chip8 strings for the rest. Whole ROMs are disassembled
+   in two streaming passes: the first collects the targets of jumps and
+   calls so the second can label them.
+
+   usage: Chip8Disassembler <rom | directory>... [--out dir] [--quirks profile]
+
+   Each ROM is written to standard out, or with --out to dir/<rom>.asm,
+   using the instruction set of the quirk profile, LEGACY by default.
+ */
+public final class Chip8Disassembler {
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    // ROMs are streamed through a buffer of this many bytes, which must be even
+    private static final int CHUNK_SIZE = 8192;
+
+    private static final class Table {
+        // indexed by instruction set, then opcode
+        static final String[][] MNEMONICS = new String[Chip8QuirkProfile.InstructionSet.values().length][1 << 16];
+
+        static {
+            StringBuilder text = new StringBuilder();
+            String[] chip8 = MNEMONICS[Chip8QuirkProfile.InstructionSet.CHIP_8.ordinal()];
+            for (Chip8QuirkProfile.InstructionSet set : Chip8QuirkProfile.InstructionSet.values()) {
+                String[] mnemonics = MNEMONICS[set.ordinal()];
+                for (int opcode = 0; opcode < mnemonics.length; opcode++) {
+                    text.setLength(0);
+                    appendMnemonic(text, (short) opcode, set);
+                    mnemonics[opcode] = chip8[opcode] != null && chip8[opcode].contentEquals(text)
+                            ? chip8[opcode] : text.toString();
+                }
+            }
+        }
+    }
+
+    private Chip8Disassembler() {
+    }
+
+    /* the mnemonic for opcode as plain chip8 */
+    public static String mnemonic(short opcode) {
+        return mnemonic(opcode, Chip8QuirkProfile.InstructionSet.CHIP_8);
+    }
+
+    public static String mnemonic(short opcode, Chip8QuirkProfile.InstructionSet set) {
+        return Table.MNEMONICS[set.ordinal()][opcode & 0xffff];
+    }
+
+    public static void appendMnemonic(StringBuilder text, short opcode) {
+        appendMnemonic(text, opcode, Chip8QuirkProfile.InstructionSet.CHIP_8);
+    }
+
+    /* True for XO-CHIP's LD I, long nnnn, whose address is the next word, so
+       it takes four bytes. mnemonic gives it as LD I LONG, without the address. */
+    public static boolean isLongLoad(short opcode, Chip8QuirkProfile.InstructionSet set) {
+        return set == Chip8QuirkProfile.InstructionSet.XO_CHIP && (opcode & 0xffff) == 0xF000;
+    }
+
+    /* appends the mnemonic for opcode under set to text without allocating,
+       in the same form as mnemonic returns it */
+    public static void appendMnemonic(StringBuilder text, short opcode, Chip8QuirkProfile.InstructionSet set) {
+        if (set != Chip8QuirkProfile.InstructionSet.CHIP_8 && appendExtendedMnemonic(text, opcode, set)) {
+            return;
+        }
+        int nnn = opcode & 0xfff;
+        int n = opcode & 0xf;
+        int x = (opcode >> 8) & 0xf;
+        int y = (opcode >> 4) & 0xf;
+        int kk = opcode & 0xff;
+        if (opcode == 0) {
+            text.append("EXIT");
+            return;
+        }
+        switch ((opcode >> 12) & 0xf) {
+            case 0:
+                if (nnn == 0xE0) {
+                    text.append("CLS");
+                } else if (nnn == 0xEE) {
+                    text.append("RET");
+                } else {
+                    appendHex(text.append("SYS "), nnn);
+                }
+                return;
+            case 1:
+                appendHex(text.append("JP "), nnn);
+                return;
+            case 2:
+                appendHex(text.append("CALL "), nnn);
+                return;
+            case 3:
+                appendHex(appendRegister(text.append("SE "), x).append(' '), kk);
+                return;
+            case 4:
+                appendHex(appendRegister(text.append("SNE "), x).append(' '), kk);
+                return;
+            case 5:
+                if (n == 0) {
+                    appendRegister(appendRegister(text.append("SE "), x).append(' '), y);
+                    return;
+                }
+                break;
+            case 6:
+                appendHex(appendRegister(text.append("LD "), x).append(' '), kk);
+                return;
+            case 7:
+                appendHex(appendRegister(text.append("ADD "), x).append(' '), kk);
+                return;
+            case 8:
+                switch (n) {
+                    case 0:
+                        appendRegister(appendRegister(text.append("LD "), x).append(' '), y);
+                        return;
+                    case 1:
+                        appendRegister(appendRegister(text.append("OR "), x).append(' '), y);
+                        return;
+                    case 2:
+                        appendRegister(appendRegister(text.append("AND "), x).append(' '), y);
+                        return;
+                    case 3:
+                        appendRegister(appendRegister(text.append("XOR "), x).append(' '), y);
+                        return;
+                    case 4:
+                        appendRegister(appendRegister(text.append("ADD "), x).append(' '), y);
+                        return;
+                    case 5:
+                        appendRegister(appendRegister(text.append("SUB "), x).append(' '), y);
+                        return;
+                    case 6:
+                        appendRegister(text.append("SHR "), x);
+                        return;
+                    case 7:
+                        appendRegister(appendRegister(text.append("SUBN "), x).append(' '), y);
+                        return;
+                    case 0xE:
+                        appendRegister(text.append("SHL "), x);
+                        return;
+                }
+                break;
+            case 9:
+                if (n == 0) {
+                    appendRegister(appendRegister(text.append("SNE "), x).append(' '), y);
+                    return;
+                }
+                break;
+            case 0xA:
+                appendHex(text.append("LD I "), nnn);
+                return;
+            case 0xB:
+                appendHex(text.append("JP V0, "), nnn);
+                return;
+            case 0xC:
+                appendHex(appendRegister(text.append("RND "), x).append(' '), kk);
+                return;
+            case 0xD:
+                appendHex(appendRegister(appendRegister(text.append("DRW "), x).append(' '), y).append(' '), n);
+                return;
+            case 0xE:
+                if (kk == 0x9E) {
+                    appendRegister(text.append("SKP "), x);
+                    return;
+                } else if (kk == 0xA1) {
+                    appendRegister(text.append("SKNP "), x);
+                    return;
+                }
+                break;
+            case 0xF:
+                switch (kk) {
+                    case 0x07:
+                        appendRegister(text.append("LD "), x).append(" DT");
+                        return;
+                    case 0x0A:
+                        appendRegister(text.append("LD "), x).append(" KEY");
+                        return;
+                    case 0x15:
+                        appendRegister(text.append("LD DT "), x);
+                        return;
+                    case 0x18:
+                        appendRegister(text.append("LD ST "), x);
+                        return;
+                    case 0x1E:
+                        appendRegister(text.append("ADD I "), x);
+                        return;
+                    case 0x29:
+                        appendRegister(text.append("LD F "), x);
+                        return;
+                    case 0x33:
+                        appendRegister(text.append("LD B, "), x);
+                        return;
+                    case 0x55:
+                        appendRegister(text.append("LD [I] "), x);
+                        return;
+                    case 0x65:
+                        appendRegister(text.append("LD "), x).append(" [I]");
+                        return;
+                }
+                break;
+        }
+        text.append("INVALID INSTRUCTION");
+    }
+
+    /* appends the mnemonic for an opcode set adds or changes, following
+       Chip8Instruction's decoding, and returns false for the rest */
+    private static boolean appendExtendedMnemonic(StringBuilder text, short opcode, Chip8QuirkProfile.InstructionSet set) {
+        boolean xo = set == Chip8QuirkProfile.InstructionSet.XO_CHIP;
+        int nnn = opcode & 0xfff;
+        int n = opcode & 0xf;
+        int x = (opcode >> 8) & 0xf;
+        int y = (opcode >> 4) & 0xf;
+        int kk = opcode & 0xff;
+        switch ((opcode >> 12) & 0xf) {
+            case 0:
+                if ((nnn & 0xff0) == 0x0C0) {
+                    appendHex(text.append("SCD "), n);
+                    return true;
+                } else if (xo && (nnn & 0xff0) == 0x0D0) {
+                    appendHex(text.append("SCU "), n);
+                    return true;
+                }
+                switch (nnn) {
+                    case 0xFB:
+                        text.append("SCR");
+                        return true;
+                    case 0xFC:
+                        text.append("SCL");
+                        return true;
+                    case 0xFD:
+                        text.append("EXIT");
+                        return true;
+                    case 0xFE:
+                        text.append("LOW");
+                        return true;
+                    case 0xFF:
+                        text.append("HIGH");
+                        return true;
+                }
+                return false;
+            case 5:
+                if (xo && n == 2) {
+                    appendRegister(appendRegister(text.append("LD [I] "), x).append('-'), y);
+                    return true;
+                } else if (xo && n == 3) {
+                    appendRegister(appendRegister(text.append("LD "), x).append('-'), y).append(" [I]");
+                    return true;
+                }
+                return false;
+            case 0xF:
+                if (isLongLoad(opcode, set)) {
+                    text.append("LD I LONG");
+                    return true;
+                } else if (xo && (opcode & 0xffff) == 0xF002) {
+                    text.append("AUDIO");
+                    return true;
+                }
+                switch (kk) {
+                    case 0x01:
+                        if (xo) {
+                            appendHex(text.append("PLANE "), x);
+                        }
+                        return xo;
+                    case 0x3A:
+                        if (xo) {
+                            appendRegister(text.append("PITCH "), x);
+                        }
+                        return xo;
+                    case 0x30:
+                        appendRegister(text.append("LD HF "), x);
+                        return true;
+                    case 0x75:
+                        appendRegister(text.append("LD R "), x);
+                        return true;
+                    case 0x85:
+                        appendRegister(text.append("LD "), x).append(" R");
+                        return true;
+                }
+                return false;
+            default:
+                return false;
+        }
+    }
+
+    private static StringBuilder appendRegister(StringBuilder text, int register) {
+        return text.append('V').append(HEX_DIGITS[register]);
+    }
+
+    // lower case hex without leading zeros, as %x formats it
+    private static StringBuilder appendHex(StringBuilder text, int value) {
+        int shift = 28;
+        while (shift > 0 && (value >>> shift) == 0) {
+            shift -= 4;
+        }
+        for (; shift >= 0; shift -= 4) {
+            text.append(HEX_DIGITS[(value >>> shift) & 0xf]);
+        }
+        return text;
+    }
+
+    private static StringBuilder appendHexDigits(StringBuilder text, int value, int digits) {
+        for (int shift = 4 * (digits - 1); shift >= 0; shift -= 4) {
+            text.append(HEX_DIGITS[(value >>> shift) & 0xf]);
+        }
+        return text;
+    }
+
+    /* disassembles rom as plain chip8 */
+    public static long disassemble(Path rom, Writer out) throws IOException {
+        return disassemble(rom, Chip8QuirkProfile.InstructionSet.CHIP_8, out);
+    }
+
+    /* Writes a listing of the ROM at rom, loaded at Chip8Machine.DEFAULT_CHIP8_ROM_LOCATION,
+       one instruction per line. Addresses in the ROM that are jumped to or
+       called get a label line of their own, and the jumps and calls refer to
+       them by label. An XO-CHIP LD I, long nnnn takes one line with its
+       address. Returns the number of instructions written. */
+    public static long disassemble(Path rom, Chip8QuirkProfile.InstructionSet set, Writer out) throws IOException {
+        try (FileChannel channel = FileChannel.open(rom, StandardOpenOption.READ)) {
+            int start = Chip8Machine.DEFAULT_CHIP8_ROM_LOCATION;
+            long end = start + (channel.size() & ~1L);
+            ByteBuffer buffer = ByteBuffer.allocate(CHUNK_SIZE);
+            // indexed from start; a JP or CALL only reaches the first 4K, XO-CHIP ROMs go further
+            boolean[] targets = new boolean[(int) Math.min(end, 1 << 12) - start];
+            int addressDigits = end > 0x1000 ? 4 : 3;
+            boolean done = false;
+            while (!done) {
+                done = fill(channel, buffer);
+                buffer.flip();
+                while (buffer.remaining() >= 2) {
+                    short opcode = buffer.getShort();
+                    if (isLongLoad(opcode, set)) {
+                        if (buffer.remaining() >= 2) {
+                            // the address, which is no instruction
+                            buffer.getShort();
+                        } else if (!done) {
+                            // the address is in the next chunk
+                            buffer.position(buffer.position() - 2);
+                            break;
+                        }
+                        continue;
+                    }
+                    int target = jumpOrCallTarget(opcode, start, end);
+                    if (target >= 0) {
+                        targets[target - start] = true;
+                    }
+                }
+                buffer.compact();
+            }
+
+            channel.position(0);
+            buffer.clear();
+            StringBuilder line = new StringBuilder();
+            int address = start;
+            long instructions = 0;
+            done = false;
+            while (!done) {
+                done = fill(channel, buffer);
+                buffer.flip();
+                while (buffer.remaining() >= 2) {
+                    short opcode = buffer.getShort();
+                    boolean longLoad = isLongLoad(opcode, set);
+                    if (longLoad && buffer.remaining() < 2) {
+                        if (!done) {
+                            buffer.position(buffer.position() - 2);
+                            break;
+                        }
+                        // the ROM ends before the address
+                        longLoad = false;
+                    }
+                    line.setLength(0);
+                    if (address - start < targets.length && targets[address - start]) {
+                        appendLabel(line, address).append(":\n");
+                    }
+                    appendHexDigits(line, address, addressDigits).append(": ");
+                    appendHexDigits(line, opcode, 4);
+                    int target = jumpOrCallTarget(opcode, start, end);
+                    if (longLoad) {
+                        int longAddress = buffer.getShort() & 0xffff;
+                        appendHexDigits(line.append(' '), longAddress, 4).append("  ");
+                        appendHex(line.append(mnemonic(opcode, set)).append(' '), longAddress);
+                        address += 2;
+                    } else if (target >= 0) {
+                        appendLabel(line.append((opcode & 0xf000) == 0x1000 ? "  JP " : "  CALL "), target);
+                    } else {
+                        line.append("  ").append(mnemonic(opcode, set));
+                    }
+                    out.append(line.append('\n'));
+                    address += 2;
+                    instructions++;
+                }
+                buffer.compact();
+            }
+            if (buffer.position() > 0) {
+                // an odd byte at the end of the ROM
+                line.setLength(0);
+                appendHexDigits(line, address, addressDigits).append(": ");
+                appendHexDigits(line, buffer.get(0), 2).append("    DB\n");
+                out.append(line);
+            }
+            return instructions;
+        }
+    }
+
+    /* the address a JP or CALL goes to when that is an instruction in the ROM, otherwise -1 */
+    private static int jumpOrCallTarget(short opcode, int start, long end) {
+        int category = opcode & 0xf000;
+        int target = opcode & 0xfff;
+        if ((category == 0x1000 || category == 0x2000) && target >= start && target < end && (target & 1) == 0) {
+            return target;
+        }
+        return -1;
+    }
+
+    private static StringBuilder appendLabel(StringBuilder text, int address) {
+        return appendHexDigits(text.append('L'), address, 3);
+    }
+
+    // reads until buffer is full; true once the end of the file has been reached
+    private static boolean fill(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public static void main(String[] args) throws IOException {
+        List<Path> roms = new ArrayList<>();
+        Path outDirectory = null;
+        Chip8QuirkProfile quirks = Chip8QuirkProfile.DEFAULT;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--out")) {
+                outDirectory = Paths.get(args[++i]);
+            } else if (args[i].equals("--quirks")) {
+                quirks = Chip8QuirkProfile.named(args[++i]);
+            } else if (Files.isDirectory(Paths.get(args[i]))) {
+                try (Stream<Path> files = Files.list(Paths.get(args[i]))) {
+                    roms.addAll(files.filter(Files::isRegularFile).sorted().collect(Collectors.toList()));
+                }
+            } else {
+                roms.add(Paths.get(args[i]));
+            }
+        }
+        if (roms.isEmpty()) {
+            System.err.println("usage: Chip8Disassembler <rom | directory>... [--out dir] [--quirks profile]");
+            System.exit(2);
+        }
+        Writer console = new BufferedWriter(new OutputStreamWriter(System.out));
+        for (Path rom : roms) {
+            if (outDirectory == null) {
+                console.append("; ").append(rom.toString()).append('\n');
+                disassemble(rom, quirks.instructionSet, console);
+            } else {
+                try (Writer out = Files.newBufferedWriter(outDirectory.resolve(rom.getFileName() + ".asm"))) {
+                    disassemble(rom, quirks.instructionSet, out);
+                }
+            }
+        }
+        console.flush();
+    }
+}
@@ -0,0 +1,12 @@
+/* Selects how Chip8Machine.step runs instructions.
+ */
+public enum Chip8ExecutionEngine {
+    // decode and dispatch one instruction per step
+    INTERPRETER,
+    // run hot straight-line blocks as generated classes, interpreting everything else
+    JIT,
+    // JIT, but every compiled block is replayed on an interpreter and the results compared
+    JIT_CONFORMANCE,
+    // interpret, running hot instruction sequences as single superinstructions
+    SUPERINSTRUCTIONS
+}
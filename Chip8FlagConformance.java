@@ -0,0 +1,105 @@
+/* Checks that the arithmetic instructions leave VF holding their flag when
+   VF is one of the operands, the destination, or both. The flag has to be
+   worked out from the operands before Vx is written and stored after it, so
+   8F14 ends with the carry in VF and 8F15 with the not-borrow rather than
+   the difference. SUB and SUBN set VF unless they borrow, so equal
+   operands leave 1, as on the VIP, CHIP-48 and SUPER-CHIP. Every case is
+   run under each quirk profile and execution engine, looped long enough for
+   the compiled engines to take it over, and compared with a reference
+   worked out here. Exits with status 1 if any case disagrees, so it can
+   gate a build.
+
+   usage: Chip8FlagConformance
+ */
+public class Chip8FlagConformance {
+    // 8xy4, 8xy5, 8xy6, 8xy7 and 8xyE
+    private static final int[] OPERATIONS = {0x4, 0x5, 0x6, 0x7, 0xE};
+    // x and y: VF as the destination, as the source, as both, and neither as a control
+    private static final int[][] REGISTERS = {{0xF, 0x3}, {0x3, 0xF}, {0xF, 0xF}, {0x3, 0x4}};
+    private static final int[][] OPERANDS = {{0x80, 0x81}, {0xFF, 0x01}, {0x05, 0x03}, {0x01, 0x01}, {0x00, 0xFF}};
+    // passes through the loop, enough for a block to be compiled and superinstructions fused
+    private static final int ITERATIONS = 64;
+
+    public static void main(String[] args) {
+        int cases = 0;
+        int failures = 0;
+        for (Chip8QuirkProfile quirks : Chip8QuirkProfile.values()) {
+            for (Chip8ExecutionEngine engine : Chip8ExecutionEngine.values()) {
+                for (int operation : OPERATIONS) {
+                    for (int[] registers : REGISTERS) {
+                        for (int[] operands : OPERANDS) {
+                            cases++;
+                            String failure = check(quirks, engine, operation, registers[0], registers[1], operands[0], operands[1]);
+                            if (failure != null) {
+                                failures++;
+                                System.out.println(failure);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        System.out.println(String.format("%d cases, %d failed", cases, failures));
+        if (failures > 0) {
+            System.exit(1);
+        }
+    }
+
+    /* runs LD Vx, a; LD Vy, b; 8xyN; JP 200 and returns a description of the
+       first register that differs from the reference, or null */
+    private static String check(Chip8QuirkProfile quirks, Chip8ExecutionEngine engine, int operation,
+            int x, int y, int a, int b) {
+        int opcode = 0x8000 | (x << 8) | (y << 4) | operation;
+        int[] program = {0x6000 | (x << 8) | a, 0x6000 | (y << 8) | b, opcode, 0x1200};
+        Chip8Machine machine = new Chip8Machine(quirks);
+        machine.setExecutionEngine(engine);
+        machine.loadRom(Chip8SampleRoms.toBytes(program));
+        try {
+            // stops on the jump back, which leaves the registers as 8xyN did
+            machine.run(ITERATIONS * program.length);
+        } catch (RuntimeException e) {
+            return String.format("%-10s %-17s %04x with V%X=%02x V%X=%02x: %s", quirks, engine, opcode, x, a, y, b, e.getMessage());
+        }
+
+        int[] expected = new int[Chip8Machine.NUM_REGISTERS];
+        expected[x] = a;
+        expected[y] = b;
+        int vx = expected[x];
+        int vy = expected[y];
+        int shifted = quirks.shiftsUseVy ? vy : vx;
+        int result;
+        int flag;
+        switch (operation) {
+            case 0x4:
+                result = (vx + vy) & 0xff;
+                flag = (vx + vy) >> 8;
+                break;
+            case 0x5:
+                result = (vx - vy) & 0xff;
+                flag = vx >= vy ? 1 : 0;
+                break;
+            case 0x6:
+                result = shifted >> 1;
+                flag = shifted & 1;
+                break;
+            case 0x7:
+                result = (vy - vx) & 0xff;
+                flag = vy >= vx ? 1 : 0;
+                break;
+            default:
+                result = (shifted << 1) & 0xff;
+                flag = shifted >> 7;
+                break;
+        }
+        expected[x] = result;
+        expected[0xF] = flag;
+
+        for (int register = 0; register < Chip8Machine.NUM_REGISTERS; register++) {
+            if (machine.getRegister(register) != expected[register]) {
+                return String.format("%-10s %-17s %04x with V%X=%02x V%X=%02x: V%X is %02x, expected %02x",
+                        quirks, engine, opcode, x, a, y, b, register, machine.getRegister(register), expected[register]);
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,101 @@
+import java.util.concurrent.atomic.AtomicInteger;
+
+/* A lock free triple buffer for handing finished frames from the emulator
+   thread to the render thread. The emulator copies the screen into its back
+   buffer and swaps it with the middle one; the renderer swaps the middle one
+   out whenever it is marked fresh. Neither side ever waits, and frames the
+   renderer doesn't get to in time are simply overwritten.
+   publish must only be called from one thread and latest from one other.
+ */
+public class Chip8FrameExchange {
+    private static final int INDEX_MASK = 0b11;
+    private static final int FRESH = 0b100;
+
+    /* A published copy of the screen. It isn't touched again until the
+       renderer has moved on to a newer frame. */
+    public static final class Frame {
+        // two words per row and HIRES_HEIGHT rows per plane, whatever the mode
+        private final long[] rows = new long[Chip8ScreenData.MAX_PLANES * Chip8ScreenData.HIRES_HEIGHT * 2];
+        private int width;
+        private int height;
+        private int planes;
+        private long sequence = -1;
+        private long dirtyRows;
+
+        /* row y packed as in Chip8ScreenData.getRow */
+        public long getRow(int y) {
+            return rows[y << 1];
+        }
+
+        /* as Chip8ScreenData.getRowWord */
+        public long getRowWord(int plane, int y, int word) {
+            return rows[((plane * Chip8ScreenData.HIRES_HEIGHT + y) << 1) + word];
+        }
+
+        public int getWidth() {
+            return width;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+
+        public int getPlanes() {
+            return planes;
+        }
+
+        public boolean getPixelValue(int x, int y) {
+            return (getRowWord(0, y, x >> 6) & (Long.MIN_VALUE >>> x)) != 0;
+        }
+
+        /* rows that changed since the frame published just before this one */
+        public long getDirtyRows() {
+            return dirtyRows;
+        }
+
+        /* increases by one with every published frame; -1 before the first */
+        public long getSequence() {
+            return sequence;
+        }
+    }
+
+    private final Frame[] frames;
+    private final AtomicInteger middle = new AtomicInteger(1);
+    private int back = 0;
+    private int front = 2;
+    private long published = 0;
+
+    /* frames are sized for the largest screen, so the screen may change mode
+       or resolution between frames */
+    public Chip8FrameExchange() {
+        frames = new Frame[] {new Frame(), new Frame(), new Frame()};
+    }
+
+    /* copies the current screen into a new frame; emulator thread only */
+    public void publish(Chip8ScreenData screenData) {
+        Frame frame = frames[back];
+        frame.width = screenData.getWidth();
+        frame.height = screenData.getHeight();
+        frame.planes = screenData.getPlanes();
+        int words = screenData.isHires() ? 2 : 1;
+        for (int plane = 0; plane < frame.planes; plane++) {
+            for (int y = 0; y < frame.height; y++) {
+                for (int word = 0; word < words; word++) {
+                    frame.rows[((plane * Chip8ScreenData.HIRES_HEIGHT + y) << 1) + word] =
+                            screenData.getRowWord(plane, y, word);
+                }
+            }
+        }
+        frame.dirtyRows = screenData.takeDirtyRows();
+        frame.sequence = published++;
+        back = middle.getAndSet(back | FRESH) & INDEX_MASK;
+    }
+
+    /* returns the most recently published frame; render thread only */
+    public Frame latest() {
+        if ((middle.get() & FRESH) != 0) {
+            front = middle.getAndSet(front) & INDEX_MASK;
+        }
+        return frames[front];
+    }
+}
@@ -0,0 +1,386 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/* Explores the keypad inputs a program can be given, looking for faults
+   and for code no input reaches. Starting from a machine, every step tries
+   each of the 16 keys and no key at all on its own fork of the machine:
+   the key is held for a number of frames and then released. A fork that
+   ends up in a state already seen, by Chip8Machine.stateHash, is dropped,
+   so inputs the program ignores cost one step rather than a whole subtree.
+   The search runs as a tree of tasks on a ForkJoinPool; forks share their
+   memory and screen pages copy on write, so a step costs about what running
+   it does.
+
+   A fault is any exception the machine throws, such as an unknown
+   instruction, which the machine is made strict about, or a CALL with a full stack. Faults are reported once per
+   kind and address with the first inputs found to reach them.
+
+   usage: Chip8Fuzzer <rom | save state> [--threads n] [--depth n] [--frames n] [--ipf n]
+                      [--max-states n] [--seconds n] [--quirks profile]
+
+   --frames is how long each key is held. The machine counts time in cycles,
+   --ipf per frame, so runs are repeatable.
+ */
+public class Chip8Fuzzer {
+    public static final int DEFAULT_DEPTH = 12;
+    public static final int DEFAULT_FRAMES_PER_STEP = 6;
+    public static final long DEFAULT_MAX_STATES = 1_000_000;
+    // choice NO_KEY presses nothing, choices 0-15 press that key
+    static final int NO_KEY = Chip8KeyPad.NUM_KEYS;
+    private static final int CHOICES = Chip8KeyPad.NUM_KEYS + 1;
+
+    /* the inputs leading to a state, newest first */
+    public static final class Inputs {
+        final int choice;
+        final Inputs previous;
+        final int length;
+
+        Inputs(int choice, Inputs previous) {
+            this.choice = choice;
+            this.previous = previous;
+            this.length = previous == null ? 1 : previous.length + 1;
+        }
+
+        /* one entry per step, oldest first: a hex key or - for none */
+        @Override
+        public String toString() {
+            char[] text = new char[2 * length - 1];
+            Inputs inputs = this;
+            for (int at = text.length - 1; at >= 0; at -= 2) {
+                text[at] = inputs.choice == NO_KEY ? '-' : Character.forDigit(inputs.choice, 16);
+                if (at > 0) {
+                    text[at - 1] = ' ';
+                }
+                inputs = inputs.previous;
+            }
+            return new String(text);
+        }
+    }
+
+    public static final class Fault {
+        public final String description;
+        public final int address;
+        public final Inputs inputs;
+        final AtomicLong count = new AtomicLong();
+
+        Fault(String description, int address, Inputs inputs) {
+            this.description = description;
+            this.address = address;
+            this.inputs = inputs;
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%03x  %s  (%d times, first after %d steps: %s)", address, description,
+                    count.get(), inputs.length, inputs);
+        }
+    }
+
+    private final int threads;
+    private final int depth;
+    private final int instructionsPerStep;
+    private final long maxStates;
+    private final Set<Long> seen = ConcurrentHashMap.newKeySet();
+    private final ConcurrentHashMap<String, Fault> faults = new ConcurrentHashMap<>();
+    private final AtomicLongArray coverage;
+    private final LongAdder states = new LongAdder();
+    private volatile long deadline = Long.MAX_VALUE;
+    private volatile boolean stopped = false;
+
+    public Chip8Fuzzer(int threads, int depth, int framesPerStep, int instructionsPerFrame, long maxStates) {
+        if (threads < 1 || depth < 1 || framesPerStep < 1 || instructionsPerFrame < 1) {
+            throw new IllegalArgumentException(String.format("%d threads, depth %d, %d frames of %d instructions",
+                    threads, depth, framesPerStep, instructionsPerFrame));
+        }
+        this.threads = threads;
+        this.depth = depth;
+        this.instructionsPerStep = framesPerStep * instructionsPerFrame;
+        this.maxStates = maxStates;
+        // enough for any profile's memory, XO-CHIP's 64KB included
+        coverage = new AtomicLongArray((1 << 16) >> 6);
+    }
+
+    /* stops exploring once nanos have passed from the start of explore */
+    public void setTimeLimit(long nanos) {
+        deadline = nanos;
+    }
+
+    /* Explores inputs from root, which is left untouched, reporting progress
+       to progress every second when it isn't null. Returns once the search
+       tree is exhausted to depth or a limit is hit. */
+    public void explore(Chip8Machine root, Progress progress) {
+        long start = System.nanoTime();
+        long end = deadline == Long.MAX_VALUE ? Long.MAX_VALUE : start + deadline;
+        seen.add(root.stateHash());
+        Chip8Machine first = root.fork();
+        first.setStrict(true);
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            ForkJoinTask<Void> search = pool.submit(new Step(first, null, 0));
+            while (true) {
+                try {
+                    search.get(1, TimeUnit.SECONDS);
+                    return;
+                } catch (TimeoutException e) {
+                    if (System.nanoTime() >= end) {
+                        stopped = true;
+                    }
+                    if (progress != null) {
+                        progress.report(this, System.nanoTime() - start);
+                    }
+                } catch (InterruptedException e) {
+                    stopped = true;
+                    Thread.currentThread().interrupt();
+                    return;
+                } catch (ExecutionException e) {
+                    // faults are caught per fork, so this is a bug in the search itself
+                    throw new IllegalStateException("search failed", e.getCause());
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    public interface Progress {
+        void report(Chip8Fuzzer fuzzer, long elapsedNanos);
+    }
+
+    /* forks explored so far, including the ones dropped as already seen */
+    public long getStates() {
+        return states.sum();
+    }
+
+    /* distinct machine states reached */
+    public int getUniqueStates() {
+        return seen.size();
+    }
+
+    public int getCoveredAddresses() {
+        int covered = 0;
+        for (int i = 0; i < coverage.length(); i++) {
+            covered += Long.bitCount(coverage.get(i));
+        }
+        return covered;
+    }
+
+    public boolean isCovered(int address) {
+        return (coverage.get(address >> 6) & (1L << address)) != 0;
+    }
+
+    public List<Fault> getFaults() {
+        List<Fault> list = new ArrayList<>(faults.values());
+        list.sort((a, b) -> a.address != b.address ? Integer.compare(a.address, b.address)
+                : a.description.compareTo(b.description));
+        return list;
+    }
+
+    /* Ranges of bytes in [start, end) that no executed instruction was read
+       from, as {first, last} pairs. In a ROM these are data, or dead code
+       as far as the inputs explored could tell. */
+    public List<int[]> getUncoveredRanges(int start, int end) {
+        List<int[]> ranges = new ArrayList<>();
+        int first = -1;
+        for (int address = start; address < end; address++) {
+            // an instruction covers its own address and the byte after it
+            boolean read = isCovered(address) || (address > 0 && isCovered(address - 1));
+            if (!read && first < 0) {
+                first = address;
+            } else if (read && first >= 0) {
+                ranges.add(new int[] {first, address - 1});
+                first = -1;
+            }
+        }
+        if (first >= 0) {
+            ranges.add(new int[] {first, end - 1});
+        }
+        return ranges;
+    }
+
+    private boolean stopping() {
+        return stopped || states.sum() >= maxStates;
+    }
+
+    /* One node of the search: machine is in the state reached by inputs and
+       is forked for every choice of the next input. The last choice runs on
+       machine itself, saving a fork. */
+    private final class Step extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Chip8Machine machine;
+        private final Inputs inputs;
+        private final int level;
+
+        Step(Chip8Machine machine, Inputs inputs, int level) {
+            this.machine = machine;
+            this.inputs = inputs;
+            this.level = level;
+        }
+
+        @Override
+        protected void compute() {
+            if (level == depth || stopping()) {
+                return;
+            }
+            long[] covered = new long[coverage.length()];
+            List<Step> next = new ArrayList<>(CHOICES);
+            for (int choice = 0; choice < CHOICES; choice++) {
+                Chip8Machine child = choice == CHOICES - 1 ? machine : machine.fork();
+                Inputs childInputs = new Inputs(choice, inputs);
+                if (run(child, choice, childInputs, covered)) {
+                    next.add(new Step(child, childInputs, level + 1));
+                }
+            }
+            merge(covered);
+            invokeAll(next);
+        }
+
+        // true when child reached a state not seen before
+        private boolean run(Chip8Machine child, int choice, Inputs childInputs, long[] covered) {
+            states.increment();
+            child.setCoverage(covered);
+            try {
+                Chip8KeyPad keyPad = child.getKeyPad();
+                if (choice != NO_KEY) {
+                    keyPad.press(choice);
+                }
+                child.run(instructionsPerStep);
+                keyPad.releaseAll();
+                // a press the program never waited for doesn't carry over to the next step
+                keyPad.takePresses();
+            } catch (RuntimeException e) {
+                fault(child, e, childInputs);
+                return false;
+            } finally {
+                child.setCoverage(null);
+            }
+            return seen.add(child.stateHash());
+        }
+    }
+
+    private void fault(Chip8Machine machine, RuntimeException e, Inputs inputs) {
+        int address = machine.getProgramCounter();
+        String description = e.getMessage() == null ? e.getClass().getName()
+                : String.format("%s: %s", e.getClass().getName(), e.getMessage());
+        faults.computeIfAbsent(String.format("%s@%x", e.getClass().getName(), address),
+                key -> new Fault(description, address, inputs)).count.incrementAndGet();
+    }
+
+    private void merge(long[] covered) {
+        for (int i = 0; i < covered.length; i++) {
+            long bits = covered[i];
+            if ((bits & ~coverage.get(i)) != 0) {
+                coverage.accumulateAndGet(i, bits, (a, b) -> a | b);
+            }
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("usage: Chip8Fuzzer <rom | save state> [--threads n] [--depth n] [--frames n] [--ipf n] [--max-states n] [--seconds n] [--quirks profile]");
+            System.exit(2);
+        }
+        int threads = Runtime.getRuntime().availableProcessors();
+        int depth = DEFAULT_DEPTH;
+        int frames = DEFAULT_FRAMES_PER_STEP;
+        int instructionsPerFrame = Chip8Scheduler.DEFAULT_INSTRUCTIONS_PER_FRAME;
+        long maxStates = DEFAULT_MAX_STATES;
+        double seconds = 0;
+        Chip8QuirkProfile quirks = Chip8QuirkProfile.DEFAULT;
+        for (int i = 1; i < args.length; i++) {
+            switch (args[i]) {
+                case "--threads":
+                    threads = Integer.parseInt(args[++i]);
+                    break;
+                case "--depth":
+                    depth = Integer.parseInt(args[++i]);
+                    break;
+                case "--frames":
+                    frames = Integer.parseInt(args[++i]);
+                    break;
+                case "--ipf":
+                    instructionsPerFrame = Integer.parseInt(args[++i]);
+                    break;
+                case "--max-states":
+                    maxStates = Long.parseLong(args[++i]);
+                    break;
+                case "--seconds":
+                    seconds = Double.parseDouble(args[++i]);
+                    break;
+                case "--quirks":
+                    quirks = Chip8QuirkProfile.named(args[++i]);
+                    break;
+                default:
+                    System.err.println(String.format("unknown option %s", args[i]));
+                    System.exit(2);
+            }
+        }
+
+        byte[] input = Files.readAllBytes(Paths.get(args[0]));
+        Chip8Machine machine = new Chip8Machine(quirks);
+        int programStart = Chip8Machine.DEFAULT_CHIP8_ROM_LOCATION;
+        int programEnd;
+        if (input.length >= 4 && ByteBuffer.wrap(input).getInt() == Chip8Machine.SAVE_STATE_MAGIC) {
+            machine.restore(input);
+            // the program is taken to run up to the last byte that isn't zero
+            Chip8Memory memory = machine.getMemory();
+            programEnd = memory.getSize();
+            while (programEnd > programStart && memory.readMemory(programEnd - 1) == 0) {
+                programEnd--;
+            }
+        } else {
+            machine.loadRom(input);
+            programEnd = programStart + input.length;
+        }
+        machine.getTimers().setCycleMode(instructionsPerFrame);
+
+        Chip8Fuzzer fuzzer = new Chip8Fuzzer(threads, depth, frames, instructionsPerFrame, maxStates);
+        if (seconds > 0) {
+            fuzzer.setTimeLimit((long) (seconds * 1.0E9));
+        }
+        long start = System.nanoTime();
+        fuzzer.explore(machine, (f, elapsed) -> System.err.println(String.format(
+                "%6.1f s  %d states, %d unique, %.0f states/s, %d addresses covered, %d faults",
+                elapsed / 1.0E9, f.getStates(), f.getUniqueStates(), f.getStates() / (elapsed / 1.0E9),
+                f.getCoveredAddresses(), f.faults.size())));
+        long elapsed = System.nanoTime() - start;
+
+        System.out.println(String.format("%d states, %d unique in %.3f s on %d threads, %.0f states/s",
+                fuzzer.getStates(), fuzzer.getUniqueStates(), elapsed / 1.0E9, threads,
+                fuzzer.getStates() / (elapsed / 1.0E9)));
+        List<Fault> found = fuzzer.getFaults();
+        System.out.println(String.format("%d faults", found.size()));
+        for (Fault fault : found) {
+            System.out.println(fault);
+        }
+        System.out.println(String.format("%d instruction addresses covered", fuzzer.getCoveredAddresses()));
+        List<int[]> uncovered = fuzzer.getUncoveredRanges(programStart, programEnd);
+        int bytes = 0;
+        for (int[] range : uncovered) {
+            bytes += range[1] - range[0] + 1;
+        }
+        System.out.println(String.format("%d of %d program bytes never executed", bytes, programEnd - programStart));
+        for (int[] range : uncovered) {
+            System.out.println(String.format("  %03x-%03x", range[0], range[1]));
+        }
+    }
+}
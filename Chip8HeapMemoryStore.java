@@ -0,0 +1,35 @@
+import java.nio.ByteBuffer;
+
+/* Memory as a plain byte array on the heap. */
+public class Chip8HeapMemoryStore implements Chip8MemoryStore {
+    private final byte[] bytes;
+
+    public Chip8HeapMemoryStore(int size) {
+        bytes = new byte[size];
+    }
+
+    @Override
+    public int size() {
+        return bytes.length;
+    }
+
+    @Override
+    public int get(int idx) {
+        return bytes[idx] & 0xff;
+    }
+
+    @Override
+    public void set(int idx, int value) {
+        bytes[idx] = (byte) value;
+    }
+
+    @Override
+    public void load(int offset, ByteBuffer src) {
+        src.get(bytes, offset, src.remaining());
+    }
+
+    @Override
+    public void save(ByteBuffer dest) {
+        dest.put(bytes);
+    }
+}
@@ -0,0 +1,116 @@
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/* Records a session so Chip8InputReplay can reproduce it exactly. Input
+   sources such as Chip8KeyboardListener feed a keypad of their own, and the
+   recorder, installed as the scheduler's input source, hands that input to
+   the machine once per frame and logs it against the machine's cycle count.
+   Keys then only ever change between frames on the emulator thread, so the
+   same input can be applied at the same cycle on replay. The machine must
+   count time in cycles, see Chip8Timers.setCycleMode.
+
+   The log is written as it goes: a header holding the RND seed, the
+   machine's quirk profile and a snapshot of the machine when recording started, then records made of a
+   tag byte and the number of cycles since the previous record as a varint.
+   A keys record carries the keys held and the keys pressed since the last
+   record, and a checkpoint record the framebuffer hash at that cycle. An end
+   record, written by close, checkpoints the final state.
+ */
+public class Chip8InputRecorder implements Chip8InputSource, Closeable {
+    static final int MAGIC = 0x43384952;
+    static final short VERSION = 2;
+    static final int TAG_END = 0;
+    static final int TAG_KEYS = 1;
+    static final int TAG_CHECKPOINT = 2;
+
+    public static final int DEFAULT_CHECKPOINT_FRAMES = 60;
+
+    private final Chip8Machine machine;
+    private final Chip8KeyPad source;
+    private final int checkpointFrames;
+    private final DataOutputStream out;
+    private long lastCycle;
+    private int lastHeld;
+
+    /* seeds the machine's RND with seed and starts logging to log */
+    public Chip8InputRecorder(Chip8Machine machine, Chip8KeyPad source, Path log, long seed, int checkpointFrames)
+            throws IOException {
+        if (!machine.getTimers().isCycleMode()) {
+            throw new IllegalStateException("recording needs the timers in cycle mode");
+        }
+        if (checkpointFrames < 1) {
+            throw new IllegalArgumentException(String.format("checkpoint every %d frames", checkpointFrames));
+        }
+        this.machine = machine;
+        this.source = source;
+        this.checkpointFrames = checkpointFrames;
+        machine.setRandomSeed(seed);
+        byte[] snapshot = machine.snapshot();
+        out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(log)));
+        out.writeInt(MAGIC);
+        out.writeShort(VERSION);
+        out.writeLong(seed);
+        out.writeUTF(machine.getQuirks().name());
+        out.writeInt(snapshot.length);
+        out.write(snapshot);
+        lastCycle = machine.getCycles();
+        lastHeld = machine.getKeyPad().getPressedKeys();
+    }
+
+    public Chip8InputRecorder(Chip8Machine machine, Chip8KeyPad source, Path log) throws IOException {
+        this(machine, source, log, System.nanoTime(), DEFAULT_CHECKPOINT_FRAMES);
+    }
+
+    @Override
+    public void update(Chip8KeyPad keyPad, long frame) {
+        try {
+            int held = source.getPressedKeys();
+            int presses = source.takePresses();
+            if (held != lastHeld || presses != 0) {
+                keyPad.apply(held, presses);
+                writeRecord(TAG_KEYS);
+                out.writeShort(held);
+                out.writeShort(presses);
+                lastHeld = held;
+            }
+            if (frame % checkpointFrames == 0) {
+                writeRecord(TAG_CHECKPOINT);
+                out.writeLong(machine.getScreenData().contentHash());
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /* checkpoints the final state and closes the log */
+    @Override
+    public void close() throws IOException {
+        try {
+            writeRecord(TAG_END);
+            out.writeLong(machine.getScreenData().contentHash());
+        } finally {
+            out.close();
+        }
+    }
+
+    private void writeRecord(int tag) throws IOException {
+        long cycle = machine.getCycles();
+        out.writeByte(tag);
+        writeVarLong(out, cycle - lastCycle);
+        lastCycle = cycle;
+    }
+
+    // seven bits at a time, low bits first, with the top bit set on all but the last byte
+    static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7fL) != 0) {
+            out.writeByte((int) (value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+}
@@ -0,0 +1,127 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/* Replays a log written by Chip8InputRecorder headless and as fast as the
+   machine can run, applying every key change at the cycle it was recorded
+   at and comparing the framebuffer hash at every checkpoint.
+
+   usage: Chip8InputReplay <log> [--jit]
+ */
+public class Chip8InputReplay {
+    public static final class Result {
+        public final long seed;
+        public final long cycles;
+        public final int checkpoints;
+        // cycle of the first checkpoint that didn't match, or -1
+        public final long mismatchCycle;
+        public final long wallNanos;
+
+        Result(long seed, long cycles, int checkpoints, long mismatchCycle, long wallNanos) {
+            this.seed = seed;
+            this.cycles = cycles;
+            this.checkpoints = checkpoints;
+            this.mismatchCycle = mismatchCycle;
+            this.wallNanos = wallNanos;
+        }
+
+        public boolean matched() {
+            return mismatchCycle < 0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: seed %016x, %d cycles, %d checkpoints in %.3f ms",
+                    matched() ? "ok" : String.format("mismatch at cycle %d", mismatchCycle),
+                    seed, cycles, checkpoints, wallNanos / 1.0E6);
+        }
+    }
+
+    /* replays log on a fresh machine, stopping at the first checkpoint that doesn't match */
+    public static Result replay(Path log, Chip8ExecutionEngine engine) throws IOException {
+        long start = System.nanoTime();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(log)))) {
+            if (in.readInt() != Chip8InputRecorder.MAGIC || in.readShort() != Chip8InputRecorder.VERSION) {
+                throw new IOException(String.format("%s is not a version %d input log", log, Chip8InputRecorder.VERSION));
+            }
+            long seed = in.readLong();
+            Chip8QuirkProfile quirks = Chip8QuirkProfile.named(in.readUTF());
+            byte[] snapshot = new byte[in.readInt()];
+            in.readFully(snapshot);
+            Chip8Machine machine = new Chip8Machine(quirks);
+            machine.restore(snapshot);
+            machine.setExecutionEngine(engine);
+            int checkpoints = 0;
+            while (true) {
+                int tag = in.readUnsignedByte();
+                runFor(machine, readVarLong(in));
+                switch (tag) {
+                    case Chip8InputRecorder.TAG_KEYS:
+                        int held = in.readUnsignedShort();
+                        int presses = in.readUnsignedShort();
+                        machine.getKeyPad().apply(held, presses);
+                        break;
+                    case Chip8InputRecorder.TAG_CHECKPOINT:
+                    case Chip8InputRecorder.TAG_END:
+                        checkpoints++;
+                        if (in.readLong() != machine.getScreenData().contentHash()) {
+                            return new Result(seed, machine.getCycles(), checkpoints, machine.getCycles(),
+                                    System.nanoTime() - start);
+                        }
+                        if (tag == Chip8InputRecorder.TAG_END) {
+                            return new Result(seed, machine.getCycles(), checkpoints, -1, System.nanoTime() - start);
+                        }
+                        break;
+                    default:
+                        throw new IOException(String.format("unknown record %d in %s", tag, log));
+                }
+            }
+        } catch (EOFException e) {
+            throw new IOException(String.format("%s ends without an end record", log), e);
+        }
+    }
+
+    private static void runFor(Chip8Machine machine, long cycles) {
+        while (cycles > 0) {
+            int budget = (int) Math.min(cycles, Integer.MAX_VALUE);
+            machine.run(budget);
+            cycles -= budget;
+        }
+    }
+
+    static long readVarLong(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("usage: Chip8InputReplay <log> [--jit]");
+            System.exit(2);
+        }
+        Chip8ExecutionEngine engine = Chip8ExecutionEngine.INTERPRETER;
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].equals("--jit")) {
+                engine = Chip8ExecutionEngine.JIT;
+            } else {
+                System.err.println(String.format("unknown option %s", args[i]));
+                System.exit(2);
+            }
+        }
+        Result result = replay(Paths.get(args[0]), engine);
+        System.out.println(result);
+        if (!result.matched()) {
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,8 @@
+/* Something that drives a keypad from emulated time rather than from events,
+   such as a scripted sequence of presses for a headless run. update is called
+   on the emulator thread before each frame runs. Event driven sources like
+   Chip8KeyboardListener call Chip8KeyPad.press and release directly instead.
+ */
+public interface Chip8InputSource {
+    void update(Chip8KeyPad keyPad, long frame);
+}
@@ -0,0 +1,347 @@
+/* A decoded chip8 instruction. Chip8Memory decodes each address once and hands
+   the same instance back to Chip8Machine.step until the bytes underneath change,
+   so the opcode fields are only ever extracted a single time.
+ */
+public final class Chip8Instruction {
+    // handler ids, one per distinct behaviour in Chip8Machine.step
+    public static final int NOP = 0;
+    public static final int CLS = 1;
+    public static final int RET = 2;
+    public static final int JP = 3;
+    public static final int CALL = 4;
+    public static final int SE_VX_KK = 5;
+    public static final int SNE_VX_KK = 6;
+    public static final int SE_VX_VY = 7;
+    public static final int LD_VX_KK = 8;
+    public static final int ADD_VX_KK = 9;
+    public static final int LD_VX_VY = 10;
+    public static final int OR_VX_VY = 11;
+    public static final int AND_VX_VY = 12;
+    public static final int XOR_VX_VY = 13;
+    public static final int ADD_VX_VY = 14;
+    public static final int SUB_VX_VY = 15;
+    public static final int SHR_VX = 16;
+    public static final int SUBN_VX_VY = 17;
+    public static final int SHL_VX = 18;
+    public static final int SNE_VX_VY = 19;
+    public static final int LD_I_NNN = 20;
+    public static final int JP_V0_NNN = 21;
+    public static final int RND_VX_KK = 22;
+    public static final int DRW_VX_VY_N = 23;
+    public static final int SKP_VX = 24;
+    public static final int SKNP_VX = 25;
+    public static final int LD_VX_DT = 26;
+    public static final int LD_VX_K = 27;
+    public static final int LD_DT_VX = 28;
+    public static final int LD_ST_VX = 29;
+    public static final int ADD_I_VX = 30;
+    public static final int LD_F_VX = 31;
+    public static final int LD_B_VX = 32;
+    public static final int LD_MEM_VX = 33;
+    public static final int LD_VX_MEM = 34;
+    // variants of the above chosen by a Chip8QuirkProfile
+    public static final int OR_VX_VY_RESET_VF = 35;
+    public static final int AND_VX_VY_RESET_VF = 36;
+    public static final int XOR_VX_VY_RESET_VF = 37;
+    public static final int JP_VX_NNN = 38;
+    public static final int DRW_VX_VY_N_CLIP = 39;
+    // SUPER-CHIP
+    public static final int SCD_N = 40;
+    public static final int SCR = 41;
+    public static final int SCL = 42;
+    public static final int EXIT = 43;
+    public static final int LOW = 44;
+    public static final int HIGH = 45;
+    public static final int DRW_EXTENDED = 46;
+    public static final int DRW_EXTENDED_CLIP = 47;
+    public static final int LD_HF_VX = 48;
+    public static final int LD_R_VX = 49;
+    public static final int LD_VX_R = 50;
+    // XO-CHIP
+    public static final int SCU_N = 51;
+    public static final int SAVE_VX_VY = 52;
+    public static final int LOAD_VX_VY = 53;
+    public static final int LD_I_LONG = 54;
+    public static final int PLANE_N = 55;
+    public static final int AUDIO = 56;
+    public static final int PITCH_VX = 57;
+    // superinstructions, see fuse
+    public static final int FUSED_LD_I_DRW = 58;
+    public static final int FUSED_ADD_SKIP = 59;
+    public static final int FUSED_LD_DT_SKIP = 60;
+
+    // every field stays final: Chip8Memory shares decoded instructions
+    // between forks on different threads without locking, see getDecodedInstructionAt
+    public final short opcode;
+    public final int handler;
+    public final short nnn;
+    public final int n;
+    public final int x;
+    // for SHR and SHL the register shifted, which is x unless the profile shifts Vy
+    public final int y;
+    public final short kk;
+    // how far LD [I], Vx and LD Vx, [I] move I under the profile, 0 for everything else
+    public final int indexIncrement;
+    // for a superinstruction the instructions after this one it runs, third
+    // being null for pairs, and how many instructions it covers
+    public final Chip8Instruction second;
+    public final Chip8Instruction third;
+    public final int length;
+
+    private Chip8Instruction(short opcode, int handler, Chip8QuirkProfile quirks) {
+        this.opcode = opcode;
+        this.handler = handler;
+        this.nnn = BitUtils.getNNN(opcode);
+        this.n = BitUtils.getN(opcode);
+        this.x = BitUtils.getX(opcode);
+        boolean shift = handler == SHR_VX || handler == SHL_VX;
+        this.y = shift && !quirks.shiftsUseVy ? x : BitUtils.getY(opcode);
+        this.kk = BitUtils.getKK(opcode);
+        this.indexIncrement = handler == LD_MEM_VX || handler == LD_VX_MEM ? indexIncrement(quirks, x) : 0;
+        second = null;
+        third = null;
+        length = 1;
+    }
+
+    private Chip8Instruction(int handler, Chip8Instruction first, Chip8Instruction second, Chip8Instruction third) {
+        opcode = first.opcode;
+        this.handler = handler;
+        nnn = first.nnn;
+        n = first.n;
+        x = first.x;
+        y = first.y;
+        kk = first.kk;
+        indexIncrement = 0;
+        this.second = second;
+        this.third = third;
+        length = third == null ? 2 : 3;
+    }
+
+    /* Fuses first and the instruction after it, and third too when it is
+       given and fits, into a superinstruction for Chip8Machine.interpretFused,
+       or returns null when they make no sequence it knows:
+         LD I, nnn; DRW Vx, Vy, n
+         ADD Vx, kk; SE or SNE Vy, kk {; JP nnn}     a counted loop
+         LD Vx, DT; SE or SNE Vy, kk {; JP nnn}      polling the delay timer */
+    public static Chip8Instruction fuse(Chip8Instruction first, Chip8Instruction second, Chip8Instruction third) {
+        switch (first.handler) {
+            case LD_I_NNN:
+                switch (second.handler) {
+                    case DRW_VX_VY_N:
+                    case DRW_VX_VY_N_CLIP:
+                    case DRW_EXTENDED:
+                    case DRW_EXTENDED_CLIP:
+                        return new Chip8Instruction(FUSED_LD_I_DRW, first, second, null);
+                    default:
+                        return null;
+                }
+            case ADD_VX_KK:
+            case LD_VX_DT:
+                if (second.handler != SE_VX_KK && second.handler != SNE_VX_KK) {
+                    return null;
+                }
+                return new Chip8Instruction(first.handler == ADD_VX_KK ? FUSED_ADD_SKIP : FUSED_LD_DT_SKIP,
+                        first, second, third != null && third.handler == JP ? third : null);
+            default:
+                return null;
+        }
+    }
+
+    /* decodes instruction as it behaves under quirks */
+    public static Chip8Instruction decode(short instruction, Chip8QuirkProfile quirks) {
+        int handler = extendedHandlerFor(instruction, quirks.instructionSet);
+        if (handler < 0) {
+            handler = handlerFor(instruction);
+        }
+        return new Chip8Instruction(instruction, withQuirks(handler, quirks), quirks);
+    }
+
+    private static int withQuirks(int handler, Chip8QuirkProfile quirks) {
+        switch (handler) {
+            case OR_VX_VY:
+                return quirks.logicResetsVF ? OR_VX_VY_RESET_VF : handler;
+            case AND_VX_VY:
+                return quirks.logicResetsVF ? AND_VX_VY_RESET_VF : handler;
+            case XOR_VX_VY:
+                return quirks.logicResetsVF ? XOR_VX_VY_RESET_VF : handler;
+            case JP_V0_NNN:
+                return quirks.jumpsUseVx ? JP_VX_NNN : handler;
+            case DRW_VX_VY_N:
+                if (quirks.isExtended()) {
+                    return quirks.spritesClip ? DRW_EXTENDED_CLIP : DRW_EXTENDED;
+                }
+                return quirks.spritesClip ? DRW_VX_VY_N_CLIP : handler;
+            default:
+                return handler;
+        }
+    }
+
+    private static int indexIncrement(Chip8QuirkProfile quirks, int x) {
+        switch (quirks.indexIncrement) {
+            case X:
+                return x;
+            case X_PLUS_ONE:
+                return x + 1;
+            default:
+                return 0;
+        }
+    }
+
+    /* The handler for an instruction the instruction set adds or changes, or
+       -1 to decode it as plain chip8 */
+    private static int extendedHandlerFor(short instruction, Chip8QuirkProfile.InstructionSet set) {
+        if (set == Chip8QuirkProfile.InstructionSet.CHIP_8) {
+            return -1;
+        }
+        boolean xo = set == Chip8QuirkProfile.InstructionSet.XO_CHIP;
+        int category = (instruction & 0xf000) >> 12;
+        int nnn = BitUtils.getNNN(instruction);
+        int n = BitUtils.getN(instruction);
+        int kk = BitUtils.getKK(instruction);
+        switch (category) {
+            case 0:
+                if ((nnn & 0xff0) == 0x0C0) {
+                    return SCD_N;
+                } else if (xo && (nnn & 0xff0) == 0x0D0) {
+                    return SCU_N;
+                }
+                switch (nnn) {
+                    case 0xFB:
+                        return SCR;
+                    case 0xFC:
+                        return SCL;
+                    case 0xFD:
+                        return EXIT;
+                    case 0xFE:
+                        return LOW;
+                    case 0xFF:
+                        return HIGH;
+                }
+                return -1;
+            case 5:
+                if (xo && n == 2) {
+                    return SAVE_VX_VY;
+                } else if (xo && n == 3) {
+                    return LOAD_VX_VY;
+                }
+                return -1;
+            case 0xF:
+                if (xo && (instruction & 0xffff) == 0xF000) {
+                    return LD_I_LONG;
+                } else if (xo && (instruction & 0xffff) == 0xF002) {
+                    return AUDIO;
+                }
+                switch (kk) {
+                    case 0x01:
+                        return xo ? PLANE_N : -1;
+                    case 0x3A:
+                        return xo ? PITCH_VX : -1;
+                    case 0x30:
+                        return LD_HF_VX;
+                    case 0x75:
+                        return LD_R_VX;
+                    case 0x85:
+                        return LD_VX_R;
+                }
+                return -1;
+            default:
+                return -1;
+        }
+    }
+
+    /* Mirrors the dispatch Chip8Machine.step used to do on the raw opcode,
+       including the cases that fall through into their neighbours.
+     */
+    private static int handlerFor(short instruction) {
+        int category = (instruction & 0xf000) >> 12;
+        int nnn = BitUtils.getNNN(instruction);
+        int n = BitUtils.getN(instruction);
+        int kk = BitUtils.getKK(instruction);
+        switch (category) {
+            case 0:
+                if (nnn == 0xE0) {
+                    return CLS;
+                } else if (nnn == 0xEE) {
+                    return RET;
+                }
+                // SYS addr is executed as JP addr
+                return JP;
+            case 1:
+                return JP;
+            case 2:
+                return CALL;
+            case 3:
+                return SE_VX_KK;
+            case 4:
+                return SNE_VX_KK;
+            case 5:
+                return SE_VX_VY;
+            case 6:
+                return LD_VX_KK;
+            case 7:
+                return ADD_VX_KK;
+            case 8:
+                switch (n) {
+                    case 0:
+                        return LD_VX_VY;
+                    case 1:
+                        return OR_VX_VY;
+                    case 2:
+                        return AND_VX_VY;
+                    case 3:
+                        return XOR_VX_VY;
+                    case 4:
+                        return ADD_VX_VY;
+                    case 5:
+                        return SUB_VX_VY;
+                    case 6:
+                        return SHR_VX;
+                    case 7:
+                        return SUBN_VX_VY;
+                    case 0xE:
+                        return SHL_VX;
+                }
+                // unknown 8xy_ opcodes are executed as SNE Vx, Vy
+                return SNE_VX_VY;
+            case 9:
+                return SNE_VX_VY;
+            case 0xA:
+                return LD_I_NNN;
+            case 0xB:
+                return JP_V0_NNN;
+            case 0xC:
+                return RND_VX_KK;
+            case 0xD:
+                return DRW_VX_VY_N;
+            case 0xE:
+                if (kk == 0x9E) {
+                    return SKP_VX;
+                } else if (kk == 0xA1) {
+                    return SKNP_VX;
+                }
+                return NOP;
+            default:
+                switch (kk) {
+                    case 0x07:
+                        return LD_VX_DT;
+                    case 0x0A:
+                        return LD_VX_K;
+                    case 0x15:
+                        return LD_DT_VX;
+                    case 0x18:
+                        return LD_ST_VX;
+                    case 0x1E:
+                        return ADD_I_VX;
+                    case 0x29:
+                        return LD_F_VX;
+                    case 0x33:
+                        return LD_B_VX;
+                    case 0x55:
+                        return LD_MEM_VX;
+                    case 0x65:
+                        return LD_VX_MEM;
+                }
+                return NOP;
+        }
+    }
+}
@@ -1,52 +1,123 @@
-import java.awt.event.KeyAdapter;
-import java.awt.event.KeyEvent;
-import java.awt.event.KeyListener;
-import java.util.HashMap;
-
-import static java.awt.event.KeyEvent.*;
-
-public class Chip8KeyPad implements KeyListener {
-    public int EMPTY_KEY = -1;
-    private HashMap<Integer, Integer> keys;
-    private int currentKeyDown = EMPTY_KEY;
-
-    public Chip8KeyPad() {
-        keys = new HashMap<>();
-        keys.put(VK_1, 0x1);
-        keys.put(VK_2, 0x2);
-        keys.put(VK_3, 0x3);
-        keys.put(VK_4, 0xC);
-        keys.put(VK_Q, 0x4);
-        keys.put(VK_W, 0x5);
-        keys.put(VK_E, 0x6);
-        keys.put(VK_R, 0xD);
-        keys.put(VK_A, 0x7);
-        keys.put(VK_S, 0x8);
-        keys.put(VK_D, 0x9);
-        keys.put(VK_F, 0xE);
-        keys.put(VK_Z, 0xA);
-        keys.put(VK_X, 0);
-        keys.put(VK_C, 0xB);
-        keys.put(VK_V, 0xF);
-    }
-
-    @Override
-    public void keyPressed(KeyEvent e) {
-        int key = e.getKeyCode();
-        if(keys.containsKey(key)) {
-            currentKeyDown = keys.get(key);
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/* Tracks which of the 16 chip8 keys are held down, one bit per key, so any
+   number of keys can be down at once. Key presses come from an input source
+   such as Chip8KeyboardListener or a Chip8InputSource, usually on another
+   thread than the emulator, so all state is kept in one atomic int: the low
+   16 bits are the keys held down and the high 16 bits the keys pressed since
+   the machine last took them, which is what LD Vx, K waits on.
+ */
+public class Chip8KeyPad {
+    public static final int NUM_KEYS = 16;
+    public static final int EMPTY_KEY = -1;
+    private static final int KEYS_MASK = 0xffff;
+
+    private final AtomicInteger state = new AtomicInteger();
+    // a thread parked in awaitPress, if any
+    private volatile Thread waiter;
+
+    public void press(int key) {
+        checkKey(key);
+        int bits = (1 << key) | (1 << (key + NUM_KEYS));
+        int current;
+        do {
+            current = state.get();
+        } while (!state.compareAndSet(current, current | bits));
+        Thread waiting = waiter;
+        if (waiting != null) {
+            LockSupport.unpark(waiting);
         }
     }
 
-    @Override
-    public void keyReleased(KeyEvent e) {
-        currentKeyDown = EMPTY_KEY;
+    public void release(int key) {
+        checkKey(key);
+        int current;
+        do {
+            current = state.get();
+        } while (!state.compareAndSet(current, current & ~(1 << key)));
     }
 
-    @Override
-    public void keyTyped(KeyEvent e) {}
+    /* releases every key, leaving presses that haven't been taken yet pending */
+    public void releaseAll() {
+        int current;
+        do {
+            current = state.get();
+        } while (!state.compareAndSet(current, current & ~KEYS_MASK));
+    }
 
+    /* false for anything that isn't a key, like a register holding 0x20 */
+    public boolean isPressed(int key) {
+        return key >= 0 && key < NUM_KEYS && (state.get() & (1 << key)) != 0;
+    }
+
+    /* bit n is set while key n is held down */
+    public int getPressedKeys() {
+        return state.get() & KEYS_MASK;
+    }
+
+    /* the lowest key held down, or EMPTY_KEY */
     public int getCurrentKeyDown() {
-        return currentKeyDown;
+        int keys = getPressedKeys();
+        return keys == 0 ? EMPTY_KEY : Integer.numberOfTrailingZeros(keys);
+    }
+
+    /* returns the keys pressed since the last call, one bit per key, and forgets them */
+    int takePresses() {
+        int current;
+        do {
+            current = state.get();
+        } while (!state.compareAndSet(current, current & KEYS_MASK));
+        return current >>> NUM_KEYS;
+    }
+
+    /* makes held the keys held down and adds presses to the pending ones, for
+       handing input over in one go at a frame boundary, see Chip8InputRecorder */
+    void apply(int held, int presses) {
+        int current;
+        do {
+            current = state.get();
+        } while (!state.compareAndSet(current, (held & KEYS_MASK) | (current & ~KEYS_MASK) | (presses << NUM_KEYS)));
+        if (presses != 0) {
+            Thread waiting = waiter;
+            if (waiting != null) {
+                LockSupport.unpark(waiting);
+            }
+        }
+    }
+
+    /* holds and has pending the same keys as other */
+    void copyFrom(Chip8KeyPad other) {
+        state.set(other.state.get());
+    }
+
+    /* parks the calling thread until a key is pressed or nanos pass; only one
+       thread may wait at a time */
+    public void awaitPress(long nanos) {
+        waiter = Thread.currentThread();
+        try {
+            if ((state.get() >>> NUM_KEYS) == 0) {
+                LockSupport.parkNanos(this, nanos);
+            }
+        } finally {
+            waiter = null;
+        }
+    }
+
+    private static void checkKey(int key) {
+        if (key < 0 || key >= NUM_KEYS) {
+            throw new IllegalArgumentException(String.format("%d is not a key", key));
+        }
+    }
+
+    static final int STATE_SIZE = 4;
+
+    void writeState(ByteBuffer out) {
+        out.putInt(state.get());
+    }
+
+    void readState(ByteBuffer in) {
+        state.set(in.getInt());
     }
 }
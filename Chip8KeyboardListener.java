@@ -0,0 +1,63 @@
+import java.awt.event.KeyEvent;
+import java.awt.event.KeyListener;
+import java.util.Arrays;
+
+import static java.awt.event.KeyEvent.*;
+
+/* Feeds AWT key events into a Chip8KeyPad, mapping the left hand block of
+   a QWERTY keyboard onto the chip8 hex keypad.
+ */
+public class Chip8KeyboardListener implements KeyListener {
+    // indexed by AWT key code, holding the chip8 key or EMPTY_KEY
+    private static final int[] KEYS = new int[256];
+
+    static {
+        Arrays.fill(KEYS, Chip8KeyPad.EMPTY_KEY);
+        KEYS[VK_1] = 0x1;
+        KEYS[VK_2] = 0x2;
+        KEYS[VK_3] = 0x3;
+        KEYS[VK_4] = 0xC;
+        KEYS[VK_Q] = 0x4;
+        KEYS[VK_W] = 0x5;
+        KEYS[VK_E] = 0x6;
+        KEYS[VK_R] = 0xD;
+        KEYS[VK_A] = 0x7;
+        KEYS[VK_S] = 0x8;
+        KEYS[VK_D] = 0x9;
+        KEYS[VK_F] = 0xE;
+        KEYS[VK_Z] = 0xA;
+        KEYS[VK_X] = 0;
+        KEYS[VK_C] = 0xB;
+        KEYS[VK_V] = 0xF;
+    }
+
+    private final Chip8KeyPad keyPad;
+
+    public Chip8KeyboardListener(Chip8KeyPad keyPad) {
+        this.keyPad = keyPad;
+    }
+
+    private static int chip8Key(KeyEvent e) {
+        int code = e.getKeyCode();
+        return code >= 0 && code < KEYS.length ? KEYS[code] : Chip8KeyPad.EMPTY_KEY;
+    }
+
+    @Override
+    public void keyPressed(KeyEvent e) {
+        int key = chip8Key(e);
+        if(key != Chip8KeyPad.EMPTY_KEY) {
+            keyPad.press(key);
+        }
+    }
+
+    @Override
+    public void keyReleased(KeyEvent e) {
+        int key = chip8Key(e);
+        if(key != Chip8KeyPad.EMPTY_KEY) {
+            keyPad.release(key);
+        }
+    }
+
+    @Override
+    public void keyTyped(KeyEvent e) {}
+}
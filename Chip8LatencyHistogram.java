@@ -0,0 +1,72 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/* A histogram of durations in power of two nanosecond buckets: bucket b
+   counts durations in [2^b, 2^(b+1)). Recording is one increment and is safe
+   from any thread; percentiles are reported as the upper edge of the bucket
+   they fall in.
+ */
+public class Chip8LatencyHistogram {
+    private static final int BUCKETS = 64;
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    public void record(long nanos) {
+        int bucket = nanos <= 0 ? 0 : 63 - Long.numberOfLeadingZeros(nanos);
+        counts.incrementAndGet(bucket);
+    }
+
+    public long[] getCounts() {
+        long[] snapshot = new long[BUCKETS];
+        for (int b = 0; b < BUCKETS; b++) {
+            snapshot[b] = counts.get(b);
+        }
+        return snapshot;
+    }
+
+    public long getCount() {
+        long total = 0;
+        for (int b = 0; b < BUCKETS; b++) {
+            total += counts.get(b);
+        }
+        return total;
+    }
+
+    /* returns an upper bound in nanoseconds for the given percentile (0-100), or 0 if empty */
+    public long getPercentile(double percentile) {
+        return percentile(getCounts(), percentile);
+    }
+
+    public void reset() {
+        for (int b = 0; b < BUCKETS; b++) {
+            counts.set(b, 0);
+        }
+    }
+
+    static long[] emptyCounts() {
+        return new long[BUCKETS];
+    }
+
+    static long percentile(long[] counts, double percentile) {
+        long total = 0;
+        for (long count : counts) {
+            total += count;
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(total * percentile / 100.0));
+        long seen = 0;
+        for (int b = 0; b < BUCKETS; b++) {
+            seen += counts[b];
+            if (seen >= rank) {
+                return b == 63 ? Long.MAX_VALUE : (1L << (b + 1)) - 1;
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+
+    void addTo(long[] totals) {
+        for (int b = 0; b < BUCKETS; b++) {
+            totals[b] += counts.get(b);
+        }
+    }
+}
@@ -1,427 +1,844 @@
-import java.awt.*;
 import java.io.File;
-import java.util.Random;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
 
 public class Chip8Machine {
     public static short DEFAULT_CHIP8_ROM_LOCATION = 0x200;
     public static int DEFAULT_MEMORY_SIZE = 4096;
     public static int NUM_REGISTERS = 16;
     public static int STACK_SIZE = 16;
-    public static int INSTRUCTION_DELAY_IN_MILLIS = 1;
-    private static Color DEFAULT_FOREGROUND_COLOR = Color.GREEN;
-    private static Color DEFAULT_BACKGROUND_COLOR = Color.BLACK;
+    // save states start with "C8SS" and a format version
+    public static final int SAVE_STATE_MAGIC = 0x43385353;
+    public static final short SAVE_STATE_VERSION = 4;
+    // SUPER-CHIP has 8 RPL user flags, XO-CHIP one per register
+    public static final int NUM_RPL_FLAGS = 16;
+    private static final int REGISTER_STATE_SIZE = 4 + 2 + NUM_REGISTERS + 2 * STACK_SIZE + 1 + 2 + 2 + 1 + 1 + 1 + 1 + 8 + 8 + 8
+            + NUM_RPL_FLAGS;
 
     private Chip8Memory memory;
     private Chip8KeyPad keyPad;
     private Chip8ScreenData screenData;
     private Chip8Timers timers;
 
-    private short[] V = new short[NUM_REGISTERS];
-    private short[] stack = new short[STACK_SIZE];
+    private short[] V;
+    private short[] stack;
     private int sp = -1;
-    private short PC = DEFAULT_CHIP8_ROM_LOCATION;
-    private short I;
+    // unsigned 16 bit, so XO-CHIP programs can reach all 64KB
+    private char PC = (char) DEFAULT_CHIP8_ROM_LOCATION;
+    private char I;
     private short DT;
     private short ST;
 
+    // instructions executed so far, and the count at which the timers next need attention
+    private long cycles;
+    private long timerDeadline;
+
+    // state of the generator behind RND, see setRandomSeed
+    private long randomState = System.nanoTime();
+
     private boolean incrementPC = false;
-    private boolean debugStepThrough = false;
+    private boolean fastForward = true;
+    // instructions skipped by fastForwardIdleLoop or spent waiting for a key
+    private long idleCycles = 0;
+    // register LD Vx, K is waiting to load a key into, or -1 when not waiting
+    private int keyWaitRegister = -1;
+    private Chip8BlockEngine blockEngine;
+    private Chip8SuperinstructionEngine superinstructions;
+    private Chip8Metrics metrics;
+    private Chip8Tracer tracer;
+    private long[] coverage;
+    private boolean strict = false;
+    private short[] rplFlags;
+    // XO-CHIP skips step over the whole four bytes of LD I, long nnnn
+    private final boolean longSkips;
 
     public Chip8Machine() {
-        memory = new Chip8Memory(DEFAULT_MEMORY_SIZE);
+        this(Chip8QuirkProfile.DEFAULT);
+    }
+
+    /* a machine that runs programs written for quirks */
+    public Chip8Machine(Chip8QuirkProfile quirks) {
+        this(new Chip8HeapMemoryStore(quirks.memorySize()), quirks);
+    }
+
+    /* A machine running the ROM at rom straight from a read only mapping of
+       the file, see Chip8MappedRomStore. The ROM is already in place, so it
+       needs no loadRom; machines made from the same file share its pages
+       until they write to them. */
+    public static Chip8Machine mappingRom(Path rom, Chip8QuirkProfile quirks) throws IOException {
+        return new Chip8Machine(Chip8MappedRomStore.map(rom, quirks.memorySize(), DEFAULT_CHIP8_ROM_LOCATION), quirks);
+    }
+
+    /* a machine whose RAM lives in store, e.g. Chip8DirectMemoryStore or Chip8MappedRomStore */
+    public Chip8Machine(Chip8MemoryStore store) {
+        this(store, Chip8QuirkProfile.DEFAULT);
+    }
+
+    public Chip8Machine(Chip8MemoryStore store, Chip8QuirkProfile quirks) {
+        V = new short[NUM_REGISTERS];
+        stack = new short[STACK_SIZE];
+        rplFlags = new short[NUM_RPL_FLAGS];
+        memory = new Chip8Memory(store, quirks);
         keyPad = new Chip8KeyPad();
-        screenData = new Chip8ScreenData();
+        screenData = new Chip8ScreenData(quirks.isExtended(), quirks.planes());
         timers = new Chip8Timers(this);
+        longSkips = quirks.instructionSet == Chip8QuirkProfile.InstructionSet.XO_CHIP;
+    }
+
+    private Chip8Machine(Chip8Machine parent) {
+        memory = parent.memory.fork();
+        screenData = parent.screenData.fork();
+        keyPad = new Chip8KeyPad();
+        keyPad.copyFrom(parent.keyPad);
+        timers = new Chip8Timers(this, parent.timers);
+        V = parent.V.clone();
+        stack = parent.stack.clone();
+        rplFlags = parent.rplFlags.clone();
+        longSkips = parent.longSkips;
+        sp = parent.sp;
+        PC = parent.PC;
+        I = parent.I;
+        DT = parent.DT;
+        ST = parent.ST;
+        cycles = parent.cycles;
+        timerDeadline = parent.timerDeadline;
+        randomState = parent.randomState;
+        incrementPC = parent.incrementPC;
+        fastForward = parent.fastForward;
+        strict = parent.strict;
+        keyWaitRegister = parent.keyWaitRegister;
+    }
+
+    /* Returns a copy of this machine that runs on independently from here.
+       Memory and screen pages are shared copy on write, so a fork costs a few
+       hundred bytes up front plus a page for each page either side later
+       writes. The fork uses the interpreter and has no metrics or tracer.
+       Memory in any other store than Chip8PagedMemoryStore is paged from the
+       first fork on. */
+    public Chip8Machine fork() {
+        return new Chip8Machine(this);
     }
 
     public Chip8ScreenData getScreenData() {
         return screenData;
     }
     public Chip8KeyPad getKeyPad() { return keyPad; }
+    public Chip8QuirkProfile getQuirks() { return memory.getQuirks(); }
+    public Chip8Timers getTimers() { return timers; }
+
+    /* number of instructions executed since the machine was created */
+    public long getCycles() {
+        return cycles;
+    }
+
+    /* starts counting into metrics, or stops counting when null */
+    public void setMetrics(Chip8Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public Chip8Metrics getMetrics() {
+        return metrics;
+    }
+
+    /* Unknown Ex__ and Fx__ instructions do nothing by default; a strict
+       machine throws IllegalStateException on them instead. */
+    public void setStrict(boolean strict) {
+        this.strict = strict;
+    }
+
+    /* Sets bit a of coverage, bit a % 64 of word a / 64, for the address a of
+       every instruction executed from now on, including idle loops that are
+       skipped rather than run; null stops recording. Compiled blocks are
+       bypassed while recording. coverage needs a bit for every address. */
+    public void setCoverage(long[] coverage) {
+        this.coverage = coverage;
+    }
+
+    /* records every instruction executed from now on into tracer, or stops
+       tracing when null. While tracing, compiled blocks and idle loop
+       skipping are bypassed so that each instruction gets its record. */
+    public void setTracer(Chip8Tracer tracer) {
+        this.tracer = tracer;
+    }
 
-    public void step() {
-        try {
-            Thread.sleep(INSTRUCTION_DELAY_IN_MILLIS);
-        } catch(InterruptedException e) {
-            System.out.println(String.format("error with Thread.sleep: ", e.getMessage()));
-            System.exit(0);
+    public void setExecutionEngine(Chip8ExecutionEngine engine) {
+        blockEngine = null;
+        superinstructions = null;
+        switch (engine) {
+            case INTERPRETER:
+                break;
+            case JIT:
+                blockEngine = new Chip8BlockEngine(this, memory, false);
+                break;
+            case JIT_CONFORMANCE:
+                blockEngine = new Chip8BlockEngine(this, memory, true);
+                break;
+            case SUPERINSTRUCTIONS:
+                superinstructions = new Chip8SuperinstructionEngine(this, memory);
+                break;
         }
-        if(debugStepThrough) {
-            try {
-                System.in.read();
-            } catch (Exception e) {
+    }
 
+    /* runs the next instruction, or the next compiled block when the JIT is
+       enabled, and returns the number of instructions executed */
+    public int step() {
+        return step(Chip8BlockCompiler.MAX_BLOCK_INSTRUCTIONS);
+    }
+
+    /* runs at most limit instructions, see Chip8Debugger for a limit of 1 */
+    int step(int limit) {
+        if (keyWaitRegister >= 0) {
+            return waitForKey(limit);
+        }
+        if (tracer != null) {
+            interpret();
+            return 1;
+        }
+        if (fastForward && !incrementPC) {
+            int skipped = fastForwardIdleLoop(limit);
+            if (skipped > 0) {
+                return skipped;
+            }
+        }
+        if (blockEngine != null && coverage == null) {
+            return blockEngine.step(limit);
+        }
+        if (superinstructions != null && coverage == null) {
+            return superinstructions.step(limit);
+        }
+        interpret();
+        return 1;
+    }
+
+    /* runs exactly budget instructions back to back and returns how many ran;
+       pacing is left to the caller, see Chip8Scheduler */
+    public int run(int budget) {
+        int executed = 0;
+        while (executed < budget) {
+            executed += step(budget - executed);
+        }
+        publishMetrics();
+        return executed;
+    }
+
+    /* makes the counts so far visible to other threads, see Chip8Metrics */
+    void publishMetrics() {
+        if (metrics != null) {
+            metrics.frameEnded();
+        }
+    }
+
+    /* true while LD Vx, K is waiting for a key press */
+    public boolean isWaitingForKey() {
+        return keyWaitRegister >= 0;
+    }
+
+    /* While waiting for a key the machine does nothing but let time pass, so
+       the rest of the budget is skipped in one go with the timers still
+       ticking. Counts as one instruction when a key has been pressed. */
+    private int waitForKey(int limit) {
+        int presses = keyPad.takePresses();
+        if (presses == 0) {
+            advanceCycles(limit);
+            idleCycles += limit;
+            return limit;
+        }
+        advanceCycles(1);
+        V[keyWaitRegister] = (short) Integer.numberOfTrailingZeros(presses);
+        keyWaitRegister = -1;
+        return 1;
+    }
+
+    /* skips idle loops instead of running them, on by default; the machine
+       ends up in the same state either way */
+    public void setFastForward(boolean fastForward) {
+        this.fastForward = fastForward;
+    }
+
+    /* instructions that were skipped over rather than executed, see setFastForward */
+    public long getIdleCycles() {
+        return idleCycles;
+    }
+
+    /* Recognises a loop that can't change anything but the cycle count and
+       the timers until time passes or a key is pressed, and skips as many
+       whole iterations of it as fit in limit. Loops are only recognised at
+       their head, right after the jump back to it, which is why this is
+       only called when incrementPC is false. Returns the number of
+       instructions skipped, or 0 to run the next instruction as usual.
+         JP a                        jump to self
+         EXIT                        the program has stopped, see interpret
+         a: SKP Vx; JP a             wait for a key, which can only be pressed
+                                     between steps
+         a: LD Vx, DT; SE Vx, 0; JP a
+                                     wait for the delay timer, in cycle mode
+                                     where its ticks can be predicted */
+    private int fastForwardIdleLoop(int limit) {
+        int head = PC;
+        if (head + 4 >= memory.getSize()) {
+            return 0;
+        }
+        Chip8Instruction first = memory.getDecodedInstructionAt(head);
+        switch (first.handler) {
+            case Chip8Instruction.JP:
+                if (first.nnn != head) {
+                    return 0;
+                }
+                skipIterations(first, null, null, limit);
+                return limit;
+            case Chip8Instruction.EXIT:
+                skipIterations(first, null, null, limit);
+                return limit;
+            case Chip8Instruction.SKP_VX: {
+                Chip8Instruction second = memory.getDecodedInstructionAt(head + 2);
+                int iterations = limit / 2;
+                if (second.handler != Chip8Instruction.JP || second.nnn != head || iterations == 0
+                        || keyPad.isPressed(V[first.x])) {
+                    return 0;
+                }
+                skipIterations(first, second, null, iterations);
+                return 2 * iterations;
+            }
+            case Chip8Instruction.LD_VX_DT: {
+                Chip8Instruction second = memory.getDecodedInstructionAt(head + 2);
+                Chip8Instruction third = memory.getDecodedInstructionAt(head + 4);
+                if (second.handler != Chip8Instruction.SE_VX_KK || second.x != first.x || second.kk != 0
+                        || third.handler != Chip8Instruction.JP || third.nnn != head
+                        || !timers.isCycleMode() || DT == 0) {
+                    return 0;
+                }
+                // DT reaches zero on this cycle, so every iteration whose LD runs before it loops again
+                long zeroCycle = timerDeadline + (DT - 1) * (long) timers.getCyclesPerTick();
+                long iterations = Math.min((zeroCycle - cycles + 1) / 3, limit / 3);
+                if (iterations < 2) {
+                    return 0;
+                }
+                // the last iteration is interpreted so Vx ends up holding what it last read
+                skipIterations(first, second, third, (int) iterations - 1);
+                interpret();
+                interpret();
+                interpret();
+                return 3 * (int) iterations;
+            }
+            default:
+                return 0;
+        }
+    }
+
+    private void skipIterations(Chip8Instruction first, Chip8Instruction second, Chip8Instruction third,
+                                int iterations) {
+        int length = second == null ? 1 : third == null ? 2 : 3;
+        advanceCycles(length * iterations);
+        idleCycles += length * iterations;
+        if (coverage != null) {
+            // the loop starts at PC, see fastForwardIdleLoop
+            for (int i = 0; i < length; i++) {
+                int address = PC + 2 * i;
+                coverage[address >> 6] |= 1L << address;
+            }
+        }
+        if (metrics != null) {
+            metrics.instructionsExecuted(first.opcode, iterations);
+            if (second != null) {
+                metrics.instructionsExecuted(second.opcode, iterations);
+            }
+            if (third != null) {
+                metrics.instructionsExecuted(third.opcode, iterations);
             }
         }
-        timers.update();
+    }
+
+    void interpret() {
+        if (++cycles >= timerDeadline) {
+            timers.tick();
+        }
         if(incrementPC) {
             PC += 2;
         }
         incrementPC = true;
-        short instruction = memory.getInstructionAt(PC);
-        short category = (short)((instruction & 0xf000) >> 12);
-        short nnn = BitUtils.getNNN(instruction);
-        short n = BitUtils.getN(instruction);
-        short x = BitUtils.getX(instruction);
-        short y = BitUtils.getY(instruction);
-        short kk = BitUtils.getKK(instruction);
+        int pc = PC;
+        Chip8Instruction instruction = memory.getDecodedInstructionAt(pc);
+        if (metrics != null) {
+            metrics.instructionExecuted(instruction.opcode);
+        }
+        if (coverage != null) {
+            coverage[pc >> 6] |= 1L << pc;
+        }
+        short nnn = instruction.nnn;
+        int n = instruction.n;
+        int x = instruction.x;
+        int y = instruction.y;
+        short kk = instruction.kk;
         //displayDebugInfo();
-        switch (category) {
-            case 0:
-                if (nnn == 0xE0) { // CLS
-                    screenData.clearScreen();
-                    break;
-                } else if (nnn == 0xEE) { // RET
-                    PC = stack[sp];
-                    sp -= 1;
-                    break;
+        switch (instruction.handler) {
+            case Chip8Instruction.CLS:
+                screenData.clearScreen();
+                break;
+            case Chip8Instruction.RET:
+                if (sp < 0) {
+                    throw new IllegalStateException(String.format("RET at %x with an empty stack", pc));
                 }
-            case 1:
+                PC = (char) stack[sp];
+                sp -= 1;
+                break;
+            case Chip8Instruction.JP:
                 // JP Address
                 incrementPC = false;
-                PC = nnn;
+                PC = (char) nnn;
                 break;
-            case 2:
+            case Chip8Instruction.CALL:
                 // CALL address
+                if (sp == STACK_SIZE - 1) {
+                    throw new IllegalStateException(String.format("CALL at %x overflows the stack", pc));
+                }
                 incrementPC = false;
                 sp += 1;
-                stack[sp] = PC;
-                PC = nnn;
+                stack[sp] = (short) PC;
+                PC = (char) nnn;
                 break;
-            case 3:
+            case Chip8Instruction.SE_VX_KK:
                 // SE Vx, byte
                 if (V[x] == kk) {
-                    PC += 2;
+                    skip();
                 }
                 break;
-            case 4:
+            case Chip8Instruction.SNE_VX_KK:
                 // SNE Vx, byte
                 if (V[x] != kk) {
-                    PC += 2;
+                    skip();
                 }
                 break;
-            case 5:
+            case Chip8Instruction.SE_VX_VY:
                 // SE Vx, Vy
                 if (V[x] == V[y]) {
-                    PC += 2;
+                    skip();
                 }
                 break;
-            case 6:
+            case Chip8Instruction.LD_VX_KK:
                 // LD Vx, byte
                 V[x] = kk;
                 break;
-            case 7:
+            case Chip8Instruction.ADD_VX_KK:
                 // ADD Vx, byte
                 V[x] += kk;
                 V[x] &= 0xff;
                 break;
-            case 8:
-                switch (n) {
-                    case 0:
-                        // LD Vx, Vy
-                        V[x] = V[y];
-                        break;
-                    case 1:
-                        // OR Vx, Vy
-                        V[x] = (short)(V[x] | V[y]);
-                        break;
-                    case 2:
-                        // AND Vx, Vy
-                        V[x] = (short)(V[x] & V[y]);
-                        break;
-                    case 3:
-                        // XOR Vx, Vy
-                        V[x] = (short)(V[x] ^ V[y]);
-                        break;
-                    case 4:
-                        // ADD Vx, Vy
-                        int addition = V[x] + V[y];
-                        if (addition > 255) {
-                            V[0xF] = 1;
-                        } else {
-                            V[0xF] = 0;
-                        }
-                        V[x] = (short)(addition & 255);
-                        break;
-                    case 5:
-                        // SUB Vx, Vy
-                        if (V[x] > V[y]) {
-                            V[0xF] = 1;
-                        } else {
-                            V[0xF] = 0;
-                        }
-                        V[x] -= V[y];
-                        V[x] = (short)(V[x]&0xff);
-                        break;
-                    case 6:
-                        // SHR Vx
-                        if((V[x] & 0b1) == 1) {
-                            V[0xF] = 1;
-                        } else {
-                            V[0xF] = 0;
-                        }
-                        V[x] /= 2;
-                        break;
-                    case 7:
-                        // SUBN Vx, Vy
-                        if(V[y] > V[x]) {
-                            V[0xF] = 1;
-                        } else {
-                            V[0xF] = 0;
-                        }
-                        V[x] = (short)((V[y] - V[x]) & 0xff);
-                        break;
-                    case 0xE:
-                        // SHL Vx
-                        if((V[x] & 1) > 0) {
-                            V[0xF] ^= 1;
-                        } else {
-                            V[0xF] ^= 0;
-                        }
-                        V[x] = (short)((V[x] << 1) & 0xff);
-                        break;
-                }
+            case Chip8Instruction.LD_VX_VY:
+                // LD Vx, Vy
+                V[x] = V[y];
                 break;
-            case 9:
+            case Chip8Instruction.OR_VX_VY:
+                // OR Vx, Vy
+                V[x] = (short)(V[x] | V[y]);
+                break;
+            case Chip8Instruction.AND_VX_VY:
+                // AND Vx, Vy
+                V[x] = (short)(V[x] & V[y]);
+                break;
+            case Chip8Instruction.XOR_VX_VY:
+                // XOR Vx, Vy
+                V[x] = (short)(V[x] ^ V[y]);
+                break;
+            case Chip8Instruction.OR_VX_VY_RESET_VF:
+                V[x] = (short)(V[x] | V[y]);
+                V[0xF] = 0;
+                break;
+            case Chip8Instruction.AND_VX_VY_RESET_VF:
+                V[x] = (short)(V[x] & V[y]);
+                V[0xF] = 0;
+                break;
+            case Chip8Instruction.XOR_VX_VY_RESET_VF:
+                V[x] = (short)(V[x] ^ V[y]);
+                V[0xF] = 0;
+                break;
+            case Chip8Instruction.ADD_VX_VY: {
+                // ADD Vx, Vy: VF is written last, so it holds the flag even when x is F
+                int addition = V[x] + V[y];
+                V[x] = (short)(addition & 255);
+                V[0xF] = (short)(addition >> 8);
+                break;
+            }
+            case Chip8Instruction.SUB_VX_VY: {
+                // SUB Vx, Vy: VF is 1 unless the subtraction borrows, so equal operands give 1
+                short notBorrow = (short)(V[x] >= V[y] ? 1 : 0);
+                V[x] = (short)((V[x] - V[y]) & 0xff);
+                V[0xF] = notBorrow;
+                break;
+            }
+            case Chip8Instruction.SHR_VX: {
+                // SHR Vx {, Vy}: y is x unless the quirks shift Vy
+                short shiftedOut = (short)(V[y] & 1);
+                V[x] = (short)(V[y] >> 1);
+                V[0xF] = shiftedOut;
+                break;
+            }
+            case Chip8Instruction.SUBN_VX_VY: {
+                // SUBN Vx, Vy
+                short notBorrow = (short)(V[y] >= V[x] ? 1 : 0);
+                V[x] = (short)((V[y] - V[x]) & 0xff);
+                V[0xF] = notBorrow;
+                break;
+            }
+            case Chip8Instruction.SHL_VX: {
+                // SHL Vx {, Vy}: VF gets the bit shifted out
+                short shiftedOut = (short)(V[y] >> 7);
+                V[x] = (short)((V[y] << 1) & 0xff);
+                V[0xF] = shiftedOut;
+                break;
+            }
+            case Chip8Instruction.SNE_VX_VY:
                 // SNE Vx, Vy
                 if(V[x] != V[y]) {
-                    PC += 2;
+                    skip();
                 }
                 break;
-            case 0xA:
+            case Chip8Instruction.LD_I_NNN:
                 // LD I nnn
-                I = nnn;
+                I = (char) nnn;
                 break;
-            case 0xB:
+            case Chip8Instruction.JP_V0_NNN:
                 // JP V0, addr
                 incrementPC = false;
-                PC = (short)(nnn + V[0]);
+                PC = (char)(nnn + V[0]);
+                break;
+            case Chip8Instruction.JP_VX_NNN:
+                // JP Vx, addr as Bxnn: to xnn plus Vx
+                incrementPC = false;
+                PC = (char)(nnn + V[x]);
                 break;
-            case 0xC:
+            case Chip8Instruction.RND_VX_KK:
                 //  RND Vx, byte
-                Random random = new Random();
-                V[x] = (short)((random.nextInt() & 0b11111111) & kk);
+                V[x] = (short)((nextRandom() & 0b11111111) & kk);
                 break;
-            case 0xD:
+            case Chip8Instruction.DRW_VX_VY_N:
                 // DRW Vx, Vy, n
-                int[] sprite = new int[n];
-                for(int i=0; i < n; i++) {
-                    sprite[i] = memory.readMemory(I + i);
+                drawn(drawWrapped(V[x], V[y], n));
+                break;
+            case Chip8Instruction.DRW_VX_VY_N_CLIP:
+                // DRW Vx, Vy, n, cut off at the edges
+                drawn(drawClipped(V[x], V[y], n));
+                break;
+            case Chip8Instruction.SKP_VX:
+                // SKP Vx
+                //System.out.println("SKP Vx called");
+                if (keyPad.isPressed(V[x])) {
+                    skip();
                 }
-                if(screenData.fillOutSprite(sprite, V[x], V[y])) {
-                    V[0xF] = 1;
-                } else {
-                    V[0xF] = 0;
+                break;
+            case Chip8Instruction.SKNP_VX:
+                // SKNP Vx
+                if(!keyPad.isPressed(V[x])) {
+                    skip();
                 }
                 break;
-            case 0xE:
-                if(kk == 0x9E) {
-                    // SKP Vx
-                    //System.out.println("SKP Vx called");
-                    if (keyPad.getCurrentKeyDown() == V[x]) {
-                        PC += 2;
-                    }
-                    break;
-                } else if(kk == 0xA1) {
-                    // SKNP Vx
-                    System.out.println("SKNP called");
-                    if(keyPad.getCurrentKeyDown() != V[x]) {
-                        PC += 2;
-                    }
-                    break;
+            case Chip8Instruction.LD_VX_DT:
+                // LD Vx, DT
+                V[x] = DT;
+                break;
+            case Chip8Instruction.LD_VX_K:
+                // LD Vx, Key: only presses from here on count, and step
+                // waits for one in waitForKey
+                keyPad.takePresses();
+                keyWaitRegister = x;
+                break;
+            case Chip8Instruction.LD_DT_VX:
+                // LD DT, Vx
+                DT = V[x];
+                timers.armed();
+                break;
+            case Chip8Instruction.LD_ST_VX:
+                // LD ST, Vx
+                ST = V[x];
+                timers.armed();
+                break;
+            case Chip8Instruction.ADD_I_VX:
+                // ADD I, Vx
+                I = (char)(I + V[x]);
+                break;
+            case Chip8Instruction.LD_F_VX:
+                // LD F, Vx
+                I = (char)(5*V[x]);
+                break;
+            case Chip8Instruction.LD_B_VX:
+                // LD B, Vx
+                memory.writeMemory(I, (short)BitUtils.getDigitOfPlaceN(V[x], 3));
+                memory.writeMemory(I+1, (short)BitUtils.getDigitOfPlaceN(V[x], 2));
+                memory.writeMemory(I+2, (short)BitUtils.getDigitOfPlaceN(V[x], 1));
+                break;
+            case Chip8Instruction.LD_MEM_VX:
+                // LD [I], Vx
+                for(byte i=0; i <= x; i++) {
+                    memory.writeMemory(I + i, V[i]);
                 }
+                I = (char)(I + instruction.indexIncrement);
                 break;
-            case 0xF:
-                switch(kk) {
-                    case 0x07:
-                        // LD Vx, DT
-                        V[x] = DT;
-                        break;
-                    case 0x0A:
-                        // LD Vx, Key
-                        System.out.println("LD Vx, Key called");
-                        while(true) {
-                            int key = keyPad.getCurrentKeyDown();
-                            System.out.println("waiting");
-                            if(key != keyPad.EMPTY_KEY) {
-                                System.out.println(key);
-                                V[x] = (short)key;
-                                break;
-                            }
-                        }
-                    case 0x15:
-                        // LD DT, Vx
-                        DT = V[x];
-                        break;
-                    case 0x18:
-                        // LD ST, Vx
-                        ST = V[x];
-                        break;
-                    case 0x1E:
-                        // ADD I, Vx
-                        I = (short)(I + V[x]);
-                        break;
-                    case 0x29:
-                        // LD F, Vx
-                        I = (short)(5*V[x]);
+            case Chip8Instruction.LD_VX_MEM:
+                // LD Vx, [I]
+                for(int i=0; i <= x; i++) {
+                    V[i] = memory.readMemory(I + i);
+                }
+                I = (char)(I + instruction.indexIncrement);
+                break;
+            case Chip8Instruction.DRW_EXTENDED:
+            case Chip8Instruction.DRW_EXTENDED_CLIP:
+                // DRW Vx, Vy, n, with n = 0 drawing 16x16
+                drawn(drawExtended(V[x], V[y], n, instruction.handler == Chip8Instruction.DRW_EXTENDED_CLIP));
+                break;
+            case Chip8Instruction.SCD_N:
+                // SCD n
+                screenData.scrollDown(n);
+                break;
+            case Chip8Instruction.SCU_N:
+                // SCU n
+                screenData.scrollUp(n);
+                break;
+            case Chip8Instruction.SCR:
+                // SCR: four pixels in either resolution
+                screenData.scrollRight(4);
+                break;
+            case Chip8Instruction.SCL:
+                // SCL
+                screenData.scrollLeft(4);
+                break;
+            case Chip8Instruction.EXIT:
+                // EXIT: there is nothing to return to, so the machine stays
+                // here, which fastForwardIdleLoop skips as it does JP to self
+                incrementPC = false;
+                break;
+            case Chip8Instruction.LOW:
+                // LOW
+                screenData.setHires(false);
+                break;
+            case Chip8Instruction.HIGH:
+                // HIGH
+                screenData.setHires(true);
+                break;
+            case Chip8Instruction.LD_HF_VX:
+                // LD HF, Vx
+                I = (char)(Chip8Memory.BIG_FONT_ADDRESS + 10 * (V[x] & 0xf));
+                break;
+            case Chip8Instruction.LD_R_VX:
+                // LD R, Vx
+                for (int i = 0; i <= x; i++) {
+                    rplFlags[i] = V[i];
+                }
+                break;
+            case Chip8Instruction.LD_VX_R:
+                // LD Vx, R
+                for (int i = 0; i <= x; i++) {
+                    V[i] = rplFlags[i];
+                }
+                break;
+            case Chip8Instruction.SAVE_VX_VY: {
+                // SAVE Vx - Vy: in either direction, leaving I alone
+                int step = x <= y ? 1 : -1;
+                for (int i = 0; i <= Math.abs(y - x); i++) {
+                    memory.writeMemory(I + i, V[x + step * i]);
+                }
+                break;
+            }
+            case Chip8Instruction.LOAD_VX_VY: {
+                // LOAD Vx - Vy
+                int step = x <= y ? 1 : -1;
+                for (int i = 0; i <= Math.abs(y - x); i++) {
+                    V[x + step * i] = memory.readMemory(I + i);
+                }
+                break;
+            }
+            case Chip8Instruction.LD_I_LONG:
+                // LD I, long nnnn: the address is the next word, which is stepped over
+                I = (char) memory.getInstructionAt(pc + 2);
+                PC += 2;
+                break;
+            case Chip8Instruction.PLANE_N:
+                // PLANE n
+                screenData.selectPlanes(x);
+                break;
+            case Chip8Instruction.AUDIO:
+            case Chip8Instruction.PITCH_VX:
+                // AUDIO and PITCH Vx: there is no sound output to give them to
+                break;
+            case Chip8Instruction.NOP:
+                if (strict) {
+                    throw new IllegalStateException(String.format("unknown instruction %04x at %x",
+                            instruction.opcode, pc));
+                }
+                break;
+            default:
+                throw new IllegalStateException(String.format("instruction %04x at %x not recognized",
+                        instruction.opcode, pc));
+        }
+        if (tracer != null) {
+            int written = Chip8Tracer.writtenRegister(instruction);
+            tracer.record(cycles, (short) pc, instruction.opcode, (short) I, written, written == Chip8Tracer.NO_REGISTER ? 0 : V[written]);
+        }
+    }
+
+    /* Runs a superinstruction from Chip8Instruction.fuse in one dispatch,
+       leaving the machine exactly as interpreting its parts one at a time
+       would, timer ticks included. Returns how many parts ran, which is
+       fewer than its length when the skip in it jumps over the last. */
+    int interpretFused(Chip8Instruction fused) {
+        if (++cycles >= timerDeadline) {
+            timers.tick();
+        }
+        if (incrementPC) {
+            PC += 2;
+        }
+        incrementPC = true;
+        if (metrics != null) {
+            metrics.instructionExecuted(fused.opcode);
+        }
+        Chip8Instruction second = fused.second;
+        switch (fused.handler) {
+            case Chip8Instruction.FUSED_LD_I_DRW:
+                I = (char) fused.nnn;
+                nextFusedPart(second);
+                switch (second.handler) {
+                    case Chip8Instruction.DRW_VX_VY_N:
+                        drawn(drawWrapped(V[second.x], V[second.y], second.n));
                         break;
-                    case 0x33:
-                        // LD B, Vx
-                        memory.writeMemory(I, (short)BitUtils.getDigitOfPlaceN(V[x], 3));
-                        memory.writeMemory(I+1, (short)BitUtils.getDigitOfPlaceN(V[x], 2));
-                        memory.writeMemory(I+2, (short)BitUtils.getDigitOfPlaceN(V[x], 1));
+                    case Chip8Instruction.DRW_VX_VY_N_CLIP:
+                        drawn(drawClipped(V[second.x], V[second.y], second.n));
                         break;
-                    case 0x55:
-                        // LD [I], Vx
-                        for(byte i=0; i <= x; i++) {
-                            memory.writeMemory(I + i, V[i]);
-                        }
+                    default:
+                        drawn(drawExtended(V[second.x], V[second.y], second.n,
+                                second.handler == Chip8Instruction.DRW_EXTENDED_CLIP));
                         break;
-                    case 0x65:
-                        // LD Vx, [I]
-                        for(int i=0; i <= x; i++) {
-                            V[i] = memory.readMemory(I + i);
-                        }
                 }
+                return 2;
+            case Chip8Instruction.FUSED_ADD_SKIP:
+                V[fused.x] = (short)((V[fused.x] + fused.kk) & 0xff);
+                break;
+            case Chip8Instruction.FUSED_LD_DT_SKIP:
+                V[fused.x] = DT;
                 break;
             default:
-                System.out.println(String.format("Instruction not recognized: %x", instruction));
-                System.exit(0);
+                throw new IllegalStateException(String.format("%04x at %x is not a superinstruction",
+                        fused.opcode, (int) PC));
+        }
+        // the rest of the skipping sequences: SE or SNE Vy, kk, then maybe JP
+        nextFusedPart(second);
+        if ((V[second.x] == second.kk) == (second.handler == Chip8Instruction.SE_VX_KK)) {
+            skip();
+            return 2;
+        }
+        Chip8Instruction third = fused.third;
+        if (third == null) {
+            return 2;
         }
+        nextFusedPart(third);
+        incrementPC = false;
+        PC = (char) third.nnn;
+        return 3;
     }
 
-    public static String getInstructionString(short instruction) {
-        short category = (short) ((instruction & 0b1111000000000000) >> 12);
-        short nnn = BitUtils.getNNN(instruction);
-        short n = BitUtils.getN(instruction);
-        short x = BitUtils.getX(instruction);
-        short y = BitUtils.getY(instruction);
-        short kk = BitUtils.getKK(instruction);
-        if(instruction == 0) {
-            return "EXIT";
-        }
-        switch (category) {
-            case 0:
-                if (nnn == 0xE0) { // CLS
-                    return "CLS";
-                } else if (nnn == 0xEE) { // RET
-                    return "RET";
-                } else { // SYS Address
-                    return String.format("SYS %x", nnn);
-                }
-            case 1:
-                // JP Address
-                return String.format("JP %x", nnn);
-            case 2:
-                // CALL address
-                return String.format("CALL %x", nnn);
-            case 3:
-                // SE Vx, byte
-                return String.format("SE V%x %x", x, kk);
-            case 4:
-                // SNE Vx, byte
-                return String.format("SNE V%x %x", x, kk);
-            case 5:
-                // SE Vx, Vy
-                return String.format("SE V%x V%x", x, y);
-            case 6:
-                // LD Vx, byte
-                return String.format("LD V%x %x", x, kk);
-            case 7:
-                // ADD Vx, byte
-                return String.format("ADD V%x %x", x, kk);
-            case 8:
-                switch (n) {
-                    case 0:
-                        // LD Vx, Vy
-                        return String.format("LD V%x V%x", x, y);
-                    case 1:
-                        // OR Vx, Vy
-                        return String.format("OR V%x V%x", x, y);
-                    case 2:
-                        // AND Vx, Vy
-                        return String.format("AND V%x V%x", x, y);
-                    case 3:
-                        // XOR Vx, Vy
-                        return String.format("XOR V%x V%x", x, y);
-                    case 4:
-                        // ADD Vx, Vy
-                        return String.format("ADD V%x V%x", x, y);
-                    case 5:
-                        // SUB Vx, Vy
-                        return String.format("SUB V%x V%x", x, y);
-                    case 6:
-                        // SHR Vx
-                        return String.format("SHR V%x", x);
-                    case 7:
-                        // SUBN Vx, Vy
-                        return String.format("SUBN V%x V%x", x, y);
-                    case 0xE:
-                        // SHL Vx
-                        return String.format("SHL V%x", x);
-                }
-            case 9:
-                // SNE Vx, Vy
-                return String.format("SNE V%x V%x", x, y);
-            case 0xA:
-                // LD I nnn
-                return String.format("LD I %x", nnn);
-            case 0xB:
-                // JP V0, addr
-                return String.format("JP V0, %x", nnn);
-            case 0xC:
-                //  RND Vx, byte
-                return String.format("RND V%x %x", x, kk);
-            case 0xD:
-                // DRW Vx, Vy, n
-                return String.format("DRW V%x V%x %x", x, y, n);
-            case 0xE:
-                if(kk == 0x9E) {
-                    // SKP Vx
-                    return String.format("SKP V%x", x);
-                } else if(kk == 0xA1) {
-                    // SKNP Vx
-                    return String.format("SKNP V%x", x);
+    // what interpret does before each instruction after the first of a superinstruction
+    private void nextFusedPart(Chip8Instruction part) {
+        if (++cycles >= timerDeadline) {
+            timers.tick();
+        }
+        PC += 2;
+        if (metrics != null) {
+            metrics.instructionExecuted(part.opcode);
+        }
+    }
+
+    private void drawn(boolean collided) {
+        if (metrics != null) {
+            metrics.drawn(collided);
+        }
+        V[0xF] = (short) (collided ? 1 : 0);
+    }
+
+    /* draws n rows at Vx, Vy, wrapping around the edges; returns true for collision */
+    private boolean drawWrapped(int vx, int vy, int n) {
+        boolean collided = false;
+        for(int i=0; i < n; i++) {
+            if(screenData.drawSpriteRow(memory.readMemory(I + i), vx, vy + i)) {
+                collided = true;
+            }
+        }
+        return collided;
+    }
+
+    /* draws n rows starting at Vx, Vy wrapped onto the screen, cutting off
+       whatever then sticks out past an edge; returns true for collision */
+    private boolean drawClipped(int vx, int vy, int n) {
+        int left = vx % screenData.getWidth();
+        int top = vy % screenData.getHeight();
+        int rows = Math.min(n, screenData.getHeight() - top);
+        boolean collided = false;
+        for (int i = 0; i < rows; i++) {
+            if (screenData.drawClippedSpriteRow(memory.readMemory(I + i), left, top + i)) {
+                collided = true;
+            }
+        }
+        return collided;
+    }
+
+    /* skips the next instruction, all of it when it is LD I, long nnnn */
+    private void skip() {
+        if (longSkips && PC + 3 < memory.getSize() && memory.getInstructionAt(PC + 2) == (short) 0xF000) {
+            PC += 2;
+        }
+        PC += 2;
+    }
+
+    /* Draws n rows of 8 pixels, or 16 rows of 16 when n is 0, at Vx, Vy wrapped
+       onto the screen, on each selected plane in turn, each plane's sprite
+       following the previous one's in memory. Returns true for collision. */
+    private boolean drawExtended(int vx, int vy, int n, boolean clip) {
+        int width = screenData.getWidth();
+        int height = screenData.getHeight();
+        int rows = n == 0 ? 16 : n;
+        int rowBytes = n == 0 ? 2 : 1;
+        int left = vx % width;
+        int top = vy % height;
+        int address = I;
+        boolean collided = false;
+        for (int plane = 0; plane < screenData.getPlanes(); plane++) {
+            if ((screenData.getSelectedPlanes() & (1 << plane)) == 0) {
+                continue;
+            }
+            for (int i = 0; i < rows; i++) {
+                int row = top + i;
+                if (row >= height) {
+                    if (clip) {
+                        break;
+                    }
+                    row -= height;
                 }
-                break;
-            case 0xF:
-                switch(kk) {
-                    case 0x07:
-                        // LD Vx, DT
-                        return String.format("LD V%x DT", x);
-                    case 0x0A:
-                        // LD Vx, Key
-                        return String.format("LD V%x KEY", x);
-                    case 0x15:
-                        // LD DT, Vx
-                        return String.format("LD DT V%x", x);
-                    case 0x18:
-                        // LD ST, Vx
-                        return String.format("LD ST V%x", x);
-                    case 0x1E:
-                        // ADD I, Vx
-                        return String.format("ADD I V%x", x);
-                    case 0x29:
-                        // LD F, Vx
-                        return String.format("LD F V%x", x);
-                    case 0x33:
-                        // LD B, Vx
-                        return String.format("LD B, V%x", x);
-                    case 0x55:
-                        // LD [I], Vx
-                        return String.format("LD [I] V%x", x);
-                    case 0x65:
-                        // LD Vx, [I]
-                        return String.format("LD V%x [I]", x);
+                int bits = rowBytes == 2
+                        ? memory.readMemory(address + 2 * i) << 8 | memory.readMemory(address + 2 * i + 1)
+                        : memory.readMemory(address + i);
+                if (screenData.drawSpriteBits(plane, bits, 8 * rowBytes, left, row, clip)) {
+                    collided = true;
                 }
+            }
+            address += rows * rowBytes;
         }
-        return "INVALID INSTRUCTION";
+        return collided;
+    }
+
+    public static String getInstructionString(short instruction) {
+        return Chip8Disassembler.mnemonic(instruction);
+    }
+
+    /* the mnemonic for instruction in the instruction set of quirks */
+    public static String getInstructionString(short instruction, Chip8QuirkProfile quirks) {
+        return Chip8Disassembler.mnemonic(instruction, quirks.instructionSet);
     }
 
     public void displayDebugInfo() {
         short currentInstruction = memory.getInstructionAt(PC);
         System.out.println(String.format("current opcode: %x", currentInstruction));
-        System.out.println(String.format("current instruction: %s", getInstructionString(currentInstruction)));
+        System.out.println(String.format("current instruction: %s", getInstructionString(currentInstruction, getQuirks())));
         System.out.println(String.format("incrementPC: %b", incrementPC));
         System.out.println("registers  stack");
         for(int i=0; i < 16; i++) {
@@ -431,11 +848,278 @@ public class Chip8Machine {
             }
             System.out.println();
         }
-        System.out.println(String.format("PC: %x", PC));
-        System.out.println(String.format("I: %x", I));
+        System.out.println(String.format("PC: %x", (int) PC));
+        System.out.println(String.format("I: %x", (int) I));
         System.out.println("\n\n");
     }
 
+    // gives compiled blocks access to the private registers as nestmates
+    static MethodHandles.Lookup jitLookup() {
+        return MethodHandles.lookup();
+    }
+
+    /* after a fault, the address of the instruction that caused it */
+    int getProgramCounter() {
+        return PC;
+    }
+
+    Chip8Memory getMemory() {
+        return memory;
+    }
+
+    int nextInstructionAddress() {
+        return incrementPC ? (PC + 2) & 0xffff : PC;
+    }
+
+    /* accounts for count instructions run outside interpret, ticking the timers as needed */
+    void advanceCycles(int count) {
+        cycles += count;
+        while (cycles >= timerDeadline) {
+            timers.tick();
+        }
+    }
+
+    long getTimerDeadline() {
+        return timerDeadline;
+    }
+
+    void setTimerDeadline(long timerDeadline) {
+        this.timerDeadline = timerDeadline;
+    }
+
+    /* makes RND produce the same sequence every time for the same seed */
+    public void setRandomSeed(long seed) {
+        randomState = seed;
+    }
+
+    // splitmix64: a handful of arithmetic operations and no allocation
+    private int nextRandom() {
+        long z = (randomState += 0x9E3779B97F4A7C15L);
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return (int) (z ^ (z >>> 31));
+    }
+
+    /* A 64 bit hash of everything that decides what the machine does next:
+       registers, stack, timers and how far they are from their next tick,
+       the RND state, a pending key wait, memory and the screen. The cycle
+       count itself is left out, so the same state reached at different
+       times hashes the same. */
+    public long stateHash() {
+        long hash = 0xcbf29ce484222325L;
+        for (short register : V) {
+            hash = mix(hash, register);
+        }
+        for (int i = 0; i <= sp; i++) {
+            hash = mix(hash, stack[i]);
+        }
+        hash = mix(hash, sp);
+        hash = mix(hash, nextInstructionAddress());
+        hash = mix(hash, I);
+        hash = mix(hash, DT);
+        hash = mix(hash, ST);
+        hash = mix(hash, timerDeadline == Long.MAX_VALUE ? -1 : timerDeadline - cycles);
+        hash = mix(hash, randomState);
+        hash = mix(hash, keyWaitRegister);
+        for (short flag : rplFlags) {
+            hash = mix(hash, flag);
+        }
+        hash = mix(hash, screenData.getHeight());
+        hash = mix(hash, screenData.getSelectedPlanes());
+        hash = mix(hash, memory.contentHash());
+        return mix(hash, screenData.contentHash());
+    }
+
+    private static long mix(long hash, long value) {
+        return (hash ^ value) * 0x100000001b3L;
+    }
+
+    /* size in bytes of what snapshot writes */
+    public int snapshotSize() {
+        return REGISTER_STATE_SIZE + Chip8Timers.STATE_SIZE + Chip8KeyPad.STATE_SIZE
+                + memory.stateSize() + screenData.stateSize();
+    }
+
+    /* writes the full machine state at out's position, advancing it by snapshotSize bytes */
+    public void snapshot(ByteBuffer out) {
+        out.putInt(SAVE_STATE_MAGIC);
+        out.putShort(SAVE_STATE_VERSION);
+        for (short register : V) {
+            out.put((byte) register);
+        }
+        for (short address : stack) {
+            out.putShort(address);
+        }
+        out.put((byte) sp);
+        out.putChar(PC);
+        out.putChar(I);
+        out.put((byte) DT);
+        out.put((byte) ST);
+        out.put((byte) (incrementPC ? 1 : 0));
+        out.put((byte) keyWaitRegister);
+        out.putLong(cycles);
+        out.putLong(timerDeadline);
+        out.putLong(randomState);
+        for (short flag : rplFlags) {
+            out.put((byte) flag);
+        }
+        timers.writeState(out);
+        keyPad.writeState(out);
+        memory.writeState(out);
+        screenData.writeState(out);
+    }
+
+    public byte[] snapshot() {
+        byte[] state = new byte[snapshotSize()];
+        snapshot(ByteBuffer.wrap(state));
+        return state;
+    }
+
+    /* replaces the machine state with one written by snapshot, reading from
+       in's position; allocates nothing unless the state is rejected */
+    public void restore(ByteBuffer in) {
+        checkState(in);
+        in.position(in.position() + 4 + 2);
+        for (int i = 0; i < NUM_REGISTERS; i++) {
+            V[i] = (short) (in.get() & 0xff);
+        }
+        for (int i = 0; i < STACK_SIZE; i++) {
+            stack[i] = in.getShort();
+        }
+        sp = in.get();
+        PC = in.getChar();
+        I = in.getChar();
+        DT = (short) (in.get() & 0xff);
+        ST = (short) (in.get() & 0xff);
+        incrementPC = in.get() != 0;
+        keyWaitRegister = in.get();
+        cycles = in.getLong();
+        timerDeadline = in.getLong();
+        randomState = in.getLong();
+        for (int i = 0; i < NUM_RPL_FLAGS; i++) {
+            rplFlags[i] = (short) (in.get() & 0xff);
+        }
+        timers.readState(in);
+        keyPad.readState(in);
+        memory.readState(in);
+        screenData.readState(in);
+    }
+
+    /* Throws IllegalArgumentException unless in holds a whole state that fits
+       this machine, with a stack pointer, PC, return addresses and waiting
+       register it could have had. Reads without moving in's position, so a
+       rejected state leaves the machine as it was. */
+    private void checkState(ByteBuffer in) {
+        if (in.remaining() < snapshotSize()) {
+            throw new IllegalArgumentException(String.format("save state has %d bytes, expected %d",
+                    in.remaining(), snapshotSize()));
+        }
+        int at = in.position();
+        if (in.getInt(at) != SAVE_STATE_MAGIC || in.getShort(at + 4) != SAVE_STATE_VERSION) {
+            throw new IllegalArgumentException(String.format("not a version %d save state", SAVE_STATE_VERSION));
+        }
+        int stackAt = at + 4 + 2 + NUM_REGISTERS;
+        at = stackAt + 2 * STACK_SIZE;
+        int savedSp = in.get(at);
+        if (savedSp < -1 || savedSp >= STACK_SIZE) {
+            throw new IllegalArgumentException(String.format("save state has stack pointer %d", savedSp));
+        }
+        for (int i = 0; i <= savedSp; i++) {
+            int address = in.getChar(stackAt + 2 * i);
+            if (address >= memory.getSize()) {
+                throw new IllegalArgumentException(String.format("save state returns to %x, outside memory", address));
+            }
+        }
+        int savedPC = in.getChar(at + 1);
+        if (savedPC >= memory.getSize()) {
+            throw new IllegalArgumentException(String.format("save state has PC at %x, outside memory", savedPC));
+        }
+        // I may hold any 16 bit value; every access through it is bounds checked
+        int savedKeyWait = in.get(at + 1 + 2 + 2 + 1 + 1 + 1);
+        if (savedKeyWait < -1 || savedKeyWait >= NUM_REGISTERS) {
+            throw new IllegalArgumentException(String.format("save state waits for a key into V%d", savedKeyWait));
+        }
+        at += 1 + 2 + 2 + 1 + 1 + 1 + 1 + 8 + 8 + 8 + NUM_RPL_FLAGS;
+        at = Chip8Timers.checkState(in, at) + Chip8KeyPad.STATE_SIZE;
+        at = memory.checkState(in, at);
+        screenData.checkState(in, at);
+    }
+
+    public void restore(byte[] state) {
+        restore(ByteBuffer.wrap(state));
+    }
+
+    public void saveState(Path file) throws IOException {
+        ByteBuffer state = ByteBuffer.allocate(snapshotSize());
+        snapshot(state);
+        state.flip();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (state.hasRemaining()) {
+                channel.write(state);
+            }
+        }
+    }
+
+    public void loadState(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer state = ByteBuffer.allocate((int) channel.size());
+            while (state.hasRemaining() && channel.read(state) >= 0) {
+            }
+            state.flip();
+            restore(state);
+        }
+    }
+
+    void copyStateFrom(Chip8Machine other) {
+        System.arraycopy(other.V, 0, V, 0, NUM_REGISTERS);
+        System.arraycopy(other.stack, 0, stack, 0, STACK_SIZE);
+        System.arraycopy(other.rplFlags, 0, rplFlags, 0, NUM_RPL_FLAGS);
+        sp = other.sp;
+        PC = other.PC;
+        I = other.I;
+        DT = other.DT;
+        ST = other.ST;
+        incrementPC = other.incrementPC;
+        keyWaitRegister = other.keyWaitRegister;
+        randomState = other.randomState;
+        memory.copyFrom(other.memory);
+    }
+
+    /* describes the first difference in registers or memory, or returns null if there is none */
+    String compareState(Chip8Machine other) {
+        if (!Arrays.equals(V, other.V)) {
+            return String.format("V %s != %s", Arrays.toString(V), Arrays.toString(other.V));
+        }
+        if (PC != other.PC || incrementPC != other.incrementPC) {
+            return String.format("PC %x/%b != %x/%b", (int) PC, incrementPC, (int) other.PC, other.incrementPC);
+        }
+        if (I != other.I) {
+            return String.format("I %x != %x", (int) I, (int) other.I);
+        }
+        if (sp != other.sp || !Arrays.equals(stack, other.stack)) {
+            return "stack differs";
+        }
+        if (!Arrays.equals(rplFlags, other.rplFlags)) {
+            return "RPL flags differ";
+        }
+        int address = memory.firstDifference(other.memory);
+        if (address >= 0) {
+            return String.format("memory at %x: %x != %x", address,
+                    memory.readMemory(address), other.memory.readMemory(address));
+        }
+        return null;
+    }
+
+    /* the value of register Vx */
+    public int getRegister(int x) {
+        return V[x];
+    }
+
+    public int getIndexRegister() {
+        return I;
+    }
+
     public int getDT() {
         return DT;
     }
@@ -444,12 +1128,21 @@ public class Chip8Machine {
     }
     public void decDT() {
         DT -= 1;
+        if (metrics != null) {
+            metrics.delayTimerTicked();
+        }
     }
     public void decST() {
         ST -= 1;
+        if (metrics != null) {
+            metrics.soundTimerTicked();
+        }
     }
-    public void loadRomFile(File romFile) {
+    public void loadRomFile(File romFile) throws IOException {
         memory.loadRomFile(romFile);
     }
+    public void loadRom(byte[] rom) {
+        memory.loadRom(rom);
+    }
 
 }
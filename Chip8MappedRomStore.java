@@ -0,0 +1,107 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/* Memory whose ROM region is a read only mapping of the ROM file. Every
+   machine running the same file shares the OS page cache copy of it; a
+   machine only gets its own copy of a PAGE_SIZE byte page of the ROM once
+   it writes to that page. The rest of the address space is a small heap
+   array. Chip8Machine.mappingRom builds a machine on one.
+ */
+public class Chip8MappedRomStore implements Chip8MemoryStore {
+    public static final int PAGE_SIZE = 256;
+
+    private final int size;
+    private final int romStart;
+    private final int romLength;
+    private final MappedByteBuffer rom;
+    // private copies of ROM pages that have been written to
+    private final byte[][] writtenPages;
+    // addresses before the ROM, then addresses after it
+    private final byte[] rest;
+
+    private Chip8MappedRomStore(int size, int romStart, MappedByteBuffer rom) {
+        this.size = size;
+        this.romStart = romStart;
+        this.romLength = rom.capacity();
+        this.rom = rom;
+        writtenPages = new byte[(romLength + PAGE_SIZE - 1) / PAGE_SIZE][];
+        rest = new byte[size - romLength];
+    }
+
+    /* maps romFile into an address space of size bytes starting at romStart */
+    public static Chip8MappedRomStore map(Path romFile, int size, int romStart) throws IOException {
+        try (FileChannel channel = FileChannel.open(romFile, StandardOpenOption.READ)) {
+            long length = channel.size();
+            if (romStart + length > size) {
+                throw new IllegalArgumentException(String.format("%s is %d bytes, too large to load at %x",
+                        romFile, length, romStart));
+            }
+            return new Chip8MappedRomStore(size, romStart, channel.map(FileChannel.MapMode.READ_ONLY, 0, length));
+        }
+    }
+
+    public static Chip8MappedRomStore map(Path romFile) throws IOException {
+        return map(romFile, Chip8Machine.DEFAULT_MEMORY_SIZE, Chip8Machine.DEFAULT_CHIP8_ROM_LOCATION);
+    }
+
+    private int restIndex(int idx) {
+        return idx < romStart ? idx : idx - romLength;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public int get(int idx) {
+        int offset = idx - romStart;
+        // one unsigned compare covers both sides of the ROM
+        if (Integer.compareUnsigned(offset, romLength) < 0) {
+            byte[] page = writtenPages[offset / PAGE_SIZE];
+            return (page != null ? page[offset % PAGE_SIZE] : rom.get(offset)) & 0xff;
+        }
+        return rest[restIndex(idx)] & 0xff;
+    }
+
+    @Override
+    public void set(int idx, int value) {
+        int offset = idx - romStart;
+        if (Integer.compareUnsigned(offset, romLength) < 0) {
+            int pageIndex = offset / PAGE_SIZE;
+            byte[] page = writtenPages[pageIndex];
+            if (page == null) {
+                page = new byte[PAGE_SIZE];
+                int pageStart = pageIndex * PAGE_SIZE;
+                rom.get(pageStart, page, 0, Math.min(PAGE_SIZE, romLength - pageStart));
+                writtenPages[pageIndex] = page;
+            }
+            page[offset % PAGE_SIZE] = (byte) value;
+        } else {
+            rest[restIndex(idx)] = (byte) value;
+        }
+    }
+
+    /* only bytes that differ are stored, so loading the mapped ROM again copies no pages */
+    @Override
+    public void load(int offset, ByteBuffer src) {
+        while (src.hasRemaining()) {
+            int value = src.get() & 0xff;
+            if (get(offset) != value) {
+                set(offset, value);
+            }
+            offset++;
+        }
+    }
+
+    @Override
+    public void save(ByteBuffer dest) {
+        for (int idx = 0; idx < size; idx++) {
+            dest.put((byte) get(idx));
+        }
+    }
+}
@@ -1,15 +1,117 @@
 import java.io.File;
 import java.io.IOException;
-import java.nio.file.Files;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
 
-/* A class for reading and writing to the chip8 RAM
+/* A class for reading and writing to the chip8 RAM.
+   The bytes themselves live in a Chip8MemoryStore, so machines can keep
+   their RAM on the heap, off heap, or partly in a mapped ROM file.
+   Memory can be forked, with the decode cache paged the same way so forks
+   share that too; memory in any other store is copied into a
+   Chip8PagedMemoryStore the first time it is forked.
  */
 public class Chip8Memory {
-    private final short[] memory;
+    // swapped from a heap store to a paged one the first time it is forked
+    private Chip8MemoryStore store;
+    private final int size;
+    private final Chip8QuirkProfile quirks;
+    private static final int PAGE_SHIFT = Chip8PagedMemoryStore.PAGE_SHIFT;
+    private static final int PAGE_SIZE = Chip8PagedMemoryStore.PAGE_SIZE;
+    private static final int PAGE_MASK = Chip8PagedMemoryStore.PAGE_MASK;
+
+    // decoded instruction for each address, filled lazily and cleared on write,
+    // in pages that are allocated on first use and may be shared with forks
+    private final Chip8Instruction[][] decoded;
+    // bit p is set while decoded[p] belongs to this memory alone
+    private final long[] ownedDecoded;
+    // instructions starting on the last byte of a page span two pages, so
+    // they are kept here, per page, and never shared
+    private Chip8Instruction[] pageEnds;
+    // per address flags, only allocated once something needs to watch writes
+    private byte[] flags;
+    // size, or 0 while any address is watched for reads so every read takes watchedRead
+    private int readLimit;
+    private int watchedReads;
+    private Chip8BlockCache blockCache;
+    private Chip8SuperinstructionEngine superinstructions;
+    private Chip8Debugger debugger;
+
+    static final byte FLAG_CODE = 1;
+    static final byte FLAG_WATCH_READ = 2;
+    static final byte FLAG_WATCH_WRITE = 4;
+
+    // SUPER-CHIP's 8x10 digits, right after the 4x5 ones; XO-CHIP's include A-F
+    static final int BIG_FONT_ADDRESS = 0x50;
+    private static final int[] BIG_FONT = {
+            0xff, 0xff, 0xc3, 0xc3, 0xc3, 0xc3, 0xc3, 0xc3, 0xff, 0xff, // 0
+            0x18, 0x78, 0x78, 0x18, 0x18, 0x18, 0x18, 0x18, 0xff, 0xff, // 1
+            0xff, 0xff, 0x03, 0x03, 0xff, 0xff, 0xc0, 0xc0, 0xff, 0xff, // 2
+            0xff, 0xff, 0x03, 0x03, 0xff, 0xff, 0x03, 0x03, 0xff, 0xff, // 3
+            0xc3, 0xc3, 0xc3, 0xc3, 0xff, 0xff, 0x03, 0x03, 0x03, 0x03, // 4
+            0xff, 0xff, 0xc0, 0xc0, 0xff, 0xff, 0x03, 0x03, 0xff, 0xff, // 5
+            0xff, 0xff, 0xc0, 0xc0, 0xff, 0xff, 0xc3, 0xc3, 0xff, 0xff, // 6
+            0xff, 0xff, 0x03, 0x03, 0x06, 0x0c, 0x18, 0x18, 0x18, 0x18, // 7
+            0xff, 0xff, 0xc3, 0xc3, 0xff, 0xff, 0xc3, 0xc3, 0xff, 0xff, // 8
+            0xff, 0xff, 0xc3, 0xc3, 0xff, 0xff, 0x03, 0x03, 0xff, 0xff, // 9
+            0x7e, 0xff, 0xc3, 0xc3, 0xc3, 0xff, 0xff, 0xc3, 0xc3, 0xc3, // A
+            0xfc, 0xfc, 0xc3, 0xc3, 0xfc, 0xfc, 0xc3, 0xc3, 0xfc, 0xfc, // B
+            0x3c, 0xff, 0xc3, 0xc0, 0xc0, 0xc0, 0xc0, 0xc3, 0xff, 0x3c, // C
+            0xfc, 0xfe, 0xc3, 0xc3, 0xc3, 0xc3, 0xc3, 0xc3, 0xfe, 0xfc, // D
+            0xff, 0xff, 0xc0, 0xc0, 0xff, 0xff, 0xc0, 0xc0, 0xff, 0xff, // E
+            0xff, 0xff, 0xc0, 0xc0, 0xff, 0xff, 0xc0, 0xc0, 0xc0, 0xc0  // F
+    };
 
     public Chip8Memory(int memSize) {
-        memory = new short[memSize];
+        this(new Chip8HeapMemoryStore(memSize));
+    }
+
+    public Chip8Memory(Chip8MemoryStore store) {
+        this(store, Chip8QuirkProfile.DEFAULT);
+    }
+
+    /* memory whose instructions decode as they behave under quirks */
+    public Chip8Memory(Chip8MemoryStore store, Chip8QuirkProfile quirks) {
+        this.store = store;
+        this.quirks = quirks;
+        size = store.size();
+        readLimit = size;
+        int pages = (size + PAGE_MASK) >> PAGE_SHIFT;
+        decoded = new Chip8Instruction[pages][];
+        ownedDecoded = new long[(pages + 63) >> 6];
         initiateSpriteMemory();
+        if (quirks.isExtended()) {
+            for (int i = 0; i < BIG_FONT.length; i++) {
+                writeMemory(BIG_FONT_ADDRESS + i, (short) BIG_FONT[i]);
+            }
+        }
+    }
+
+    private Chip8Memory(Chip8Memory parent, Chip8MemoryStore store) {
+        this.store = store;
+        quirks = parent.quirks;
+        size = parent.size;
+        readLimit = size;
+        decoded = parent.decoded.clone();
+        ownedDecoded = new long[parent.ownedDecoded.length];
+    }
+
+    /* A memory with the same contents that shares its pages, and its
+       decoded instructions, with this one until either side writes to them.
+       The fork starts without a block cache, flags or watches. */
+    Chip8Memory fork() {
+        if (!(store instanceof Chip8PagedMemoryStore)) {
+            // other stores read faster or share a mapped ROM, so memory is
+            // only paged once there is something to share it with
+            ByteBuffer bytes = ByteBuffer.allocate(size);
+            store.save(bytes);
+            bytes.flip();
+            store = new Chip8PagedMemoryStore(size);
+            store.load(0, bytes);
+        }
+        Arrays.fill(ownedDecoded, 0);
+        return new Chip8Memory(this, ((Chip8PagedMemoryStore) store).fork());
     }
 
     private static void throwInvalidAccessException(int idx) {
@@ -17,29 +119,195 @@ public class Chip8Memory {
     }
 
     private boolean validAccess(int idx) {
-        if (idx < 0 || idx > memory.length) {
-            return false;
-        }
-        return true;
+        // negative indices become huge unsigned ones, so one compare covers both ends
+        return Integer.compareUnsigned(idx, size) < 0;
     }
 
     public short readMemory(int idx) {
-        if (validAccess(idx)) {
-            return memory[idx];
-        } else {
+        if (Integer.compareUnsigned(idx, readLimit) < 0) {
+            return (short) store.get(idx);
+        }
+        return watchedRead(idx);
+    }
+
+    // bad addresses, and every read while reads are watched
+    private short watchedRead(int idx) {
+        if (!validAccess(idx)) {
             throwInvalidAccessException(idx);
-            return 0;
         }
+        if ((flags[idx] & FLAG_WATCH_READ) != 0 && debugger != null) {
+            debugger.memoryRead(idx);
+        }
+        return (short) store.get(idx);
     }
 
     public void writeMemory(int idx, short value) {
         if (validAccess(idx)) {
-            memory[idx] = (short) (value & 0xff);
+            store.set(idx, value & 0xff);
+            forgetDecoded(idx);
+            if (flags != null && flags[idx] != 0) {
+                flaggedWrite(idx);
+            }
         } else {
             throwInvalidAccessException(idx);
         }
     }
 
+    /* the byte at idx is the high half of the instruction at idx and the low half of the one at idx-1 */
+    private void forgetDecoded(int idx) {
+        int page = idx >>> PAGE_SHIFT;
+        int offset = idx & PAGE_MASK;
+        if (pageEnds != null) {
+            if (offset == PAGE_MASK) {
+                pageEnds[page] = null;
+            } else if (offset == 0 && page > 0) {
+                pageEnds[page - 1] = null;
+            }
+        }
+        Chip8Instruction[] entries = decoded[page];
+        if (entries == null) {
+            return;
+        }
+        if ((ownedDecoded[page >> 6] & (1L << page)) == 0) {
+            // this side's bytes are about to differ from the forks sharing the page
+            entries = entries.clone();
+            decoded[page] = entries;
+            ownedDecoded[page >> 6] |= 1L << page;
+        }
+        if (offset != PAGE_MASK) {
+            entries[offset] = null;
+        }
+        if (offset != 0) {
+            entries[offset - 1] = null;
+        }
+    }
+
+    public Chip8QuirkProfile getQuirks() {
+        return quirks;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    void setBlockCache(Chip8BlockCache blockCache) {
+        this.blockCache = blockCache;
+    }
+
+    void setSuperinstructions(Chip8SuperinstructionEngine superinstructions) {
+        this.superinstructions = superinstructions;
+    }
+
+    void setDebugger(Chip8Debugger debugger) {
+        this.debugger = debugger;
+    }
+
+    /* Tells the debugger about reads and writes of idx from now on, or stops
+       telling it. Writes are already checked against the flags; reads are
+       only checked at all while some address is watched for them. */
+    void setWatch(int idx, boolean read, boolean write) {
+        if (!validAccess(idx)) {
+            throwInvalidAccessException(idx);
+        }
+        if (flags == null) {
+            if (!read && !write) {
+                return;
+            }
+            flags = new byte[size];
+        }
+        boolean wasRead = (flags[idx] & FLAG_WATCH_READ) != 0;
+        flags[idx] = (byte) (flags[idx] & ~(FLAG_WATCH_READ | FLAG_WATCH_WRITE)
+                | (read ? FLAG_WATCH_READ : 0) | (write ? FLAG_WATCH_WRITE : 0));
+        watchedReads += (read ? 1 : 0) - (wasRead ? 1 : 0);
+        readLimit = watchedReads > 0 ? 0 : size;
+    }
+
+    /* flags [start, end) as holding compiled code or superinstructions */
+    void markCode(int start, int end) {
+        if (flags == null) {
+            flags = new byte[size];
+        }
+        for (int i = start; i < end; i++) {
+            flags[i] |= FLAG_CODE;
+        }
+    }
+
+    private void flaggedWrite(int idx) {
+        if ((flags[idx] & FLAG_CODE) != 0) {
+            if (blockCache != null) {
+                blockCache.invalidate(idx);
+            }
+            if (superinstructions != null) {
+                superinstructions.invalidate(idx);
+            }
+        }
+        if ((flags[idx] & FLAG_WATCH_WRITE) != 0 && debugger != null) {
+            debugger.memoryWritten(idx);
+        }
+    }
+
+    /* makes this memory hold the same bytes as other, only writing the bytes that differ */
+    void copyFrom(Chip8Memory other) {
+        for (int i = 0; i < size; i++) {
+            int value = other.store.get(i);
+            if (store.get(i) != value) {
+                writeMemory(i, (short) value);
+            }
+        }
+    }
+
+    /* returns the first address holding a different byte than other, or -1 */
+    int firstDifference(Chip8Memory other) {
+        for (int i = 0; i < size; i++) {
+            if (store.get(i) != other.store.get(i)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /* a 64 bit FNV-1a hash of the bytes */
+    long contentHash() {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < size; i++) {
+            hash ^= store.get(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    int stateSize() {
+        return 4 + size;
+    }
+
+    void writeState(ByteBuffer out) {
+        out.putInt(size);
+        store.save(out);
+    }
+
+    /* throws unless the state written by writeState at offset in in fits
+       this memory; returns the offset just past it */
+    int checkState(ByteBuffer in, int offset) {
+        int savedSize = in.getInt(offset);
+        if (savedSize != size) {
+            throw new IllegalArgumentException(String.format("save state has %d bytes of memory, expected %d",
+                    savedSize, size));
+        }
+        return offset + stateSize();
+    }
+
+    /* Only bytes that differ are written, so caches for unchanged code
+       survive a restore. The state must have passed checkState. */
+    void readState(ByteBuffer in) {
+        in.getInt();
+        for (int i = 0; i < size; i++) {
+            int value = in.get() & 0xff;
+            if (store.get(i) != value) {
+                writeMemory(i, (short) value);
+            }
+        }
+    }
+
     /*
     Writes 1-F character sprites to interpreter area of memory
      */
@@ -98,21 +366,81 @@ public class Chip8Memory {
         }
     }
 
-    public void loadRomFile(File romFile) {
-        byte[] bytes = null;
-        try {
-            bytes = Files.readAllBytes(romFile.toPath());
-        } catch (IOException e) {
-            System.out.println(String.format("Issue with file: %s", e.getCause()));
-            System.exit(0);
+    /* maps the file and bulk copies it into memory rather than reading it into an array first */
+    public void loadRomFile(File romFile) throws IOException {
+        try (FileChannel channel = FileChannel.open(romFile.toPath(), StandardOpenOption.READ)) {
+            loadRom(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
         }
-        for (int i = 0; i < bytes.length; i++) {
-            byte w = bytes[i];
-            writeMemory(Chip8Machine.DEFAULT_CHIP8_ROM_LOCATION + i, w);
+    }
+
+    public void loadRom(byte[] bytes) {
+        loadRom(ByteBuffer.wrap(bytes));
+    }
+
+    /* copies rom's remaining bytes to the program area in one bulk store */
+    public void loadRom(ByteBuffer rom) {
+        int start = Chip8Machine.DEFAULT_CHIP8_ROM_LOCATION;
+        int end = start + rom.remaining();
+        if (end > size) {
+            throwInvalidAccessException(end - 1);
+        }
+        store.load(start, rom);
+        invalidate(start, end);
+    }
+
+    /* drops cached decodes and notifies watchers for bytes written behind writeMemory's back */
+    private void invalidate(int start, int end) {
+        for (int i = start; i < end; i++) {
+            forgetDecoded(i);
+        }
+        if (flags != null) {
+            for (int i = start; i < end; i++) {
+                if (flags[i] != 0) {
+                    flaggedWrite(i);
+                }
+            }
         }
     }
 
     public short getInstructionAt(int idx) {
-        return (short) ((memory[idx] << 8) | ((memory[idx + 1] & 0xff)));
+        return (short) ((store.get(idx) << 8) | store.get(idx + 1));
+    }
+
+    public Chip8Instruction getDecodedInstructionAt(int idx) {
+        int page = idx >>> PAGE_SHIFT;
+        int offset = idx & PAGE_MASK;
+        if (offset == PAGE_MASK) {
+            return decodePageEnd(idx, page);
+        }
+        Chip8Instruction[] entries = decoded[page];
+        if (entries == null) {
+            entries = new Chip8Instruction[PAGE_SIZE];
+            decoded[page] = entries;
+            ownedDecoded[page >> 6] |= 1L << page;
+        }
+        Chip8Instruction instruction = entries[offset];
+        if (instruction == null) {
+            // Filling a shared page needs no lock even though forks run on
+            // different Chip8Fuzzer threads: sharing it means every side holds
+            // the same bytes, so racing fills store equal instructions, and every
+            // field of Chip8Instruction is final, so a thread that reads another's
+            // entry sees it fully built. A non-final field there would make this a
+            // data race.
+            instruction = Chip8Instruction.decode(getInstructionAt(idx), quirks);
+            entries[offset] = instruction;
+        }
+        return instruction;
+    }
+
+    private Chip8Instruction decodePageEnd(int idx, int page) {
+        if (pageEnds == null) {
+            pageEnds = new Chip8Instruction[decoded.length];
+        }
+        Chip8Instruction instruction = pageEnds[page];
+        if (instruction == null) {
+            instruction = Chip8Instruction.decode(getInstructionAt(idx), quirks);
+            pageEnds[page] = instruction;
+        }
+        return instruction;
     }
 }
\ No newline at end of file
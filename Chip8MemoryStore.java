@@ -0,0 +1,19 @@
+import java.nio.ByteBuffer;
+
+/* Backing storage for Chip8Memory. Chip8Memory bounds checks every address
+   before it gets here, so stores can index without checking again. Bytes
+   are passed around as ints from 0 to 255.
+ */
+public interface Chip8MemoryStore {
+    int size();
+
+    int get(int idx);
+
+    void set(int idx, int value);
+
+    /* copies the remaining bytes of src to offset onwards, advancing src */
+    void load(int offset, ByteBuffer src);
+
+    /* copies every byte to dest, advancing it by size bytes */
+    void save(ByteBuffer dest);
+}
@@ -0,0 +1,146 @@
+/* Execution counters for one machine. Only the thread running the machine
+   touches the counters, so they are plain fields with nothing shared between
+   machines on the hot path. At the end of each Chip8Machine.run, and of each
+   Chip8Debugger run, the machine thread copies them into whichever of two
+   arrays isn't published and publishes that one through a volatile field,
+   so publishing allocates nothing. The getters and Chip8MetricsBean read the
+   published array and see the counts as of the last frame boundary; a reader
+   that takes longer than a frame may get some counts a frame newer than
+   others. A machine driven only through Chip8Machine.step publishes nothing.
+   A reset from another thread
+   only sets a flag the machine thread acts on at that boundary. The latency
+   histograms can be recorded and reset from any thread. A machine without
+   metrics pays one null check per instruction.
+ */
+public class Chip8Metrics {
+    private final long[] opcodeFamilies = new long[16];
+    private long drawCalls;
+    private long drawCollisions;
+    private long delayTimerTicks;
+    private long soundTimerTicks;
+    private final Chip8LatencyHistogram frameTimes = new Chip8LatencyHistogram();
+    private final Chip8LatencyHistogram renderTimes = new Chip8LatencyHistogram();
+
+    // published[0..15] are the opcode families, then the four counters below
+    private static final int DRAW_CALLS = 16;
+    private static final int DRAW_COLLISIONS = 17;
+    private static final int DELAY_TIMER_TICKS = 18;
+    private static final int SOUND_TIMER_TICKS = 19;
+    private static final int COUNTERS = 20;
+    private final long[] front = new long[COUNTERS];
+    private final long[] back = new long[COUNTERS];
+    private volatile long[] published = front;
+    private volatile boolean resetRequested;
+
+    void instructionExecuted(short opcode) {
+        opcodeFamilies[(opcode >> 12) & 0xF]++;
+    }
+
+    void instructionsExecuted(short opcode, long count) {
+        opcodeFamilies[(opcode >> 12) & 0xF] += count;
+    }
+
+    void drawn(boolean collided) {
+        drawCalls++;
+        if (collided) {
+            drawCollisions++;
+        }
+    }
+
+    void delayTimerTicked() {
+        delayTimerTicks++;
+    }
+
+    void soundTimerTicked() {
+        soundTimerTicks++;
+    }
+
+    /* called by the machine thread between frames: applies a pending reset
+       and publishes the counters */
+    void frameEnded() {
+        if (resetRequested) {
+            resetRequested = false;
+            for (int family = 0; family < 16; family++) {
+                opcodeFamilies[family] = 0;
+            }
+            drawCalls = 0;
+            drawCollisions = 0;
+            delayTimerTicks = 0;
+            soundTimerTicks = 0;
+        }
+        long[] counts = published == front ? back : front;
+        System.arraycopy(opcodeFamilies, 0, counts, 0, 16);
+        counts[DRAW_CALLS] = drawCalls;
+        counts[DRAW_COLLISIONS] = drawCollisions;
+        counts[DELAY_TIMER_TICKS] = delayTimerTicks;
+        counts[SOUND_TIMER_TICKS] = soundTimerTicks;
+        published = counts;
+    }
+
+    /* time the emulator spent executing one frame's instructions */
+    public Chip8LatencyHistogram getFrameTimes() {
+        return frameTimes;
+    }
+
+    /* time the renderer spent presenting one frame */
+    public Chip8LatencyHistogram getRenderTimes() {
+        return renderTimes;
+    }
+
+    public long getInstructionsExecuted() {
+        long[] counts = published;
+        long total = 0;
+        for (int family = 0; family < 16; family++) {
+            total += counts[family];
+        }
+        return total;
+    }
+
+    public long getOpcodeFamilyCount(int family) {
+        return published[family];
+    }
+
+    public long getDrawCalls() {
+        return published[DRAW_CALLS];
+    }
+
+    public long getDrawCollisions() {
+        return published[DRAW_COLLISIONS];
+    }
+
+    public long getDelayTimerTicks() {
+        return published[DELAY_TIMER_TICKS];
+    }
+
+    public long getSoundTimerTicks() {
+        return published[SOUND_TIMER_TICKS];
+    }
+
+    /* adds these counters to Chip8MetricsBean's totals */
+    public Chip8Metrics register() {
+        Chip8MetricsBean.getInstance().add(this);
+        return this;
+    }
+
+    /* stops reporting this machine separately; its counts stay in the totals */
+    public void unregister() {
+        Chip8MetricsBean.getInstance().remove(this);
+    }
+
+    /* adds the published counts to totals, which belongs to Chip8MetricsBean
+       and is never run by a machine */
+    void addTo(Chip8Metrics totals) {
+        long[] counts = published;
+        long[] sums = totals.published;
+        for (int i = 0; i < COUNTERS; i++) {
+            sums[i] += counts[i];
+        }
+    }
+
+    /* zeroes the counters at the machine's next frame boundary and the histograms now */
+    void reset() {
+        resetRequested = true;
+        frameTimes.reset();
+        renderTimes.reset();
+    }
+}
@@ -0,0 +1,176 @@
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/* Sums the Chip8Metrics of every registered machine and publishes the totals
+   as the Chip8Emulator:type=Metrics MXBean. Counts from machines that have
+   been unregistered are folded into a retired total so nothing goes
+   backwards.
+ */
+public class Chip8MetricsBean implements Chip8MetricsMXBean {
+    public static final String OBJECT_NAME = "Chip8Emulator:type=Metrics";
+
+    private static Chip8MetricsBean instance;
+
+    private final List<Chip8Metrics> machines = new ArrayList<>();
+    private Chip8Metrics retired = new Chip8Metrics();
+    private final long[] retiredFrameTimes = Chip8LatencyHistogram.emptyCounts();
+    private final long[] retiredRenderTimes = Chip8LatencyHistogram.emptyCounts();
+
+    private long lastSampleNanos = System.nanoTime();
+    private long lastSampleInstructions;
+    private double instructionsPerSecond;
+
+    private Chip8MetricsBean() {
+    }
+
+    /* returns the bean, registering it with the platform MBean server the first time */
+    public static synchronized Chip8MetricsBean getInstance() {
+        if (instance == null) {
+            instance = new Chip8MetricsBean();
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(instance, new ObjectName(OBJECT_NAME));
+            } catch (JMException e) {
+                throw new IllegalStateException(String.format("could not register %s", OBJECT_NAME), e);
+            }
+        }
+        return instance;
+    }
+
+    synchronized void add(Chip8Metrics metrics) {
+        machines.add(metrics);
+    }
+
+    synchronized void remove(Chip8Metrics metrics) {
+        if (machines.remove(metrics)) {
+            metrics.addTo(retired);
+            metrics.getFrameTimes().addTo(retiredFrameTimes);
+            metrics.getRenderTimes().addTo(retiredRenderTimes);
+        }
+    }
+
+    private synchronized Chip8Metrics totals() {
+        Chip8Metrics totals = new Chip8Metrics();
+        retired.addTo(totals);
+        for (Chip8Metrics metrics : machines) {
+            metrics.addTo(totals);
+        }
+        return totals;
+    }
+
+    private synchronized long[] frameTimes() {
+        long[] totals = retiredFrameTimes.clone();
+        for (Chip8Metrics metrics : machines) {
+            metrics.getFrameTimes().addTo(totals);
+        }
+        return totals;
+    }
+
+    private synchronized long[] renderTimes() {
+        long[] totals = retiredRenderTimes.clone();
+        for (Chip8Metrics metrics : machines) {
+            metrics.getRenderTimes().addTo(totals);
+        }
+        return totals;
+    }
+
+    @Override
+    public synchronized int getMachineCount() {
+        return machines.size();
+    }
+
+    @Override
+    public long getInstructionsExecuted() {
+        return totals().getInstructionsExecuted();
+    }
+
+    @Override
+    public synchronized double getInstructionsPerSecond() {
+        long now = System.nanoTime();
+        if (now - lastSampleNanos >= 1_000_000_000L) {
+            long instructions = getInstructionsExecuted();
+            instructionsPerSecond = (instructions - lastSampleInstructions) * 1.0E9 / (now - lastSampleNanos);
+            lastSampleInstructions = instructions;
+            lastSampleNanos = now;
+        }
+        return instructionsPerSecond;
+    }
+
+    @Override
+    public Map<String, Long> getOpcodeFamilyCounts() {
+        Chip8Metrics totals = totals();
+        Map<String, Long> counts = new LinkedHashMap<>();
+        for (int family = 0; family < 16; family++) {
+            counts.put(String.format("0x%X", family), totals.getOpcodeFamilyCount(family));
+        }
+        return counts;
+    }
+
+    @Override
+    public long getDrawCalls() {
+        return totals().getDrawCalls();
+    }
+
+    @Override
+    public long getDrawCollisions() {
+        return totals().getDrawCollisions();
+    }
+
+    @Override
+    public long getDelayTimerTicks() {
+        return totals().getDelayTimerTicks();
+    }
+
+    @Override
+    public long getSoundTimerTicks() {
+        return totals().getSoundTimerTicks();
+    }
+
+    @Override
+    public long getFrameTimeP50Nanos() {
+        return Chip8LatencyHistogram.percentile(frameTimes(), 50);
+    }
+
+    @Override
+    public long getFrameTimeP99Nanos() {
+        return Chip8LatencyHistogram.percentile(frameTimes(), 99);
+    }
+
+    @Override
+    public long getRenderTimeP50Nanos() {
+        return Chip8LatencyHistogram.percentile(renderTimes(), 50);
+    }
+
+    @Override
+    public long getRenderTimeP99Nanos() {
+        return Chip8LatencyHistogram.percentile(renderTimes(), 99);
+    }
+
+    @Override
+    public long[] getFrameTimeHistogram() {
+        return frameTimes();
+    }
+
+    @Override
+    public long[] getRenderTimeHistogram() {
+        return renderTimes();
+    }
+
+    @Override
+    public synchronized void reset() {
+        retired = new Chip8Metrics();
+        for (int b = 0; b < retiredFrameTimes.length; b++) {
+            retiredFrameTimes[b] = 0;
+            retiredRenderTimes[b] = 0;
+        }
+        for (Chip8Metrics metrics : machines) {
+            metrics.reset();
+        }
+        lastSampleInstructions = 0;
+        lastSampleNanos = System.nanoTime();
+    }
+}
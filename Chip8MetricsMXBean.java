@@ -0,0 +1,41 @@
+import java.util.Map;
+
+/* What Chip8MetricsBean exposes over JMX, summed over every registered
+   machine. The counters are as of each machine's last Chip8Machine.run or
+   Chip8Debugger stop; instructions run through Chip8Machine.step alone
+   don't show until one of those happens. */
+public interface Chip8MetricsMXBean {
+    int getMachineCount();
+
+    long getInstructionsExecuted();
+
+    /* measured between successive reads, at most once a second */
+    double getInstructionsPerSecond();
+
+    /* executed instructions keyed by their top nibble, "0x0" to "0xF" */
+    Map<String, Long> getOpcodeFamilyCounts();
+
+    long getDrawCalls();
+
+    long getDrawCollisions();
+
+    long getDelayTimerTicks();
+
+    long getSoundTimerTicks();
+
+    long getFrameTimeP50Nanos();
+
+    long getFrameTimeP99Nanos();
+
+    long getRenderTimeP50Nanos();
+
+    long getRenderTimeP99Nanos();
+
+    /* raw power of two bucket counts, see Chip8LatencyHistogram */
+    long[] getFrameTimeHistogram();
+
+    long[] getRenderTimeHistogram();
+
+    /* the histograms clear at once, each machine's counters at the end of its current frame */
+    void reset();
+}
@@ -0,0 +1,79 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/* Memory split into PAGE_SIZE byte pages that can be shared between forks
+   of a machine. A page is written in place only while this store owns it;
+   the first write to a shared page copies just that page. Pages nobody has
+   written yet all share one page of zeros.
+ */
+public class Chip8PagedMemoryStore implements Chip8MemoryStore {
+    static final int PAGE_SHIFT = 8;
+    static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+    static final int PAGE_MASK = PAGE_SIZE - 1;
+    // never written, since no store owns it
+    private static final byte[] ZERO_PAGE = new byte[PAGE_SIZE];
+
+    private final int size;
+    private final byte[][] pages;
+    // bit p is set while pages[p] belongs to this store alone
+    private final long[] owned;
+
+    public Chip8PagedMemoryStore(int size) {
+        this.size = size;
+        pages = new byte[(size + PAGE_MASK) >> PAGE_SHIFT][];
+        Arrays.fill(pages, ZERO_PAGE);
+        owned = new long[(pages.length + 63) >> 6];
+    }
+
+    private Chip8PagedMemoryStore(Chip8PagedMemoryStore parent) {
+        size = parent.size;
+        pages = parent.pages.clone();
+        owned = new long[parent.owned.length];
+    }
+
+    /* a store with the same contents that shares every page with this one
+       until either side writes to it */
+    public Chip8PagedMemoryStore fork() {
+        Arrays.fill(owned, 0);
+        return new Chip8PagedMemoryStore(this);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public int get(int idx) {
+        return pages[idx >>> PAGE_SHIFT][idx & PAGE_MASK] & 0xff;
+    }
+
+    @Override
+    public void set(int idx, int value) {
+        writablePage(idx >>> PAGE_SHIFT)[idx & PAGE_MASK] = (byte) value;
+    }
+
+    private byte[] writablePage(int page) {
+        if ((owned[page >> 6] & (1L << page)) == 0) {
+            pages[page] = pages[page].clone();
+            owned[page >> 6] |= 1L << page;
+        }
+        return pages[page];
+    }
+
+    @Override
+    public void load(int offset, ByteBuffer src) {
+        while (src.hasRemaining()) {
+            int length = Math.min(src.remaining(), PAGE_SIZE - (offset & PAGE_MASK));
+            src.get(writablePage(offset >>> PAGE_SHIFT), offset & PAGE_MASK, length);
+            offset += length;
+        }
+    }
+
+    @Override
+    public void save(ByteBuffer dest) {
+        for (int page = 0; page < pages.length; page++) {
+            dest.put(pages[page], 0, Math.min(PAGE_SIZE, size - (page << PAGE_SHIFT)));
+        }
+    }
+}
@@ -0,0 +1,83 @@
+/* The points on which chip8 interpreters disagree, and the instruction set
+   they run. A machine is bound to a profile when it is built: Chip8Memory
+   decodes each instruction for that profile, picking a handler or fields
+   that already include the quirk, so neither Chip8Machine.step nor compiled
+   blocks ever look at the profile.
+ */
+public enum Chip8QuirkProfile {
+    // the original interpreter on the COSMAC VIP
+    COSMAC_VIP(InstructionSet.CHIP_8, true, true, IndexIncrement.X_PLUS_ONE, true, false),
+    // the HP48 interpreter most later games were written against
+    CHIP_48(InstructionSet.CHIP_8, false, false, IndexIncrement.X, true, true),
+    // SUPER-CHIP 1.1
+    SUPER_CHIP(InstructionSet.SUPER_CHIP, false, false, IndexIncrement.NONE, true, true),
+    // XO-CHIP as Octo runs it
+    XO_CHIP(InstructionSet.XO_CHIP, true, false, IndexIncrement.X_PLUS_ONE, false, false),
+    // what this emulator has always done: SUPER-CHIP's quirks for the plain
+    // chip8 instructions, but with sprites wrapping around the screen edges
+    // and JP V0, addr jumping from V0
+    LEGACY(InstructionSet.CHIP_8, false, false, IndexIncrement.NONE, false, false);
+
+    public static final Chip8QuirkProfile DEFAULT = LEGACY;
+
+    /* Each set adds to the one before it. SUPER-CHIP brings the 128x64
+       screen, scrolling, 16x16 sprites, a large font and the RPL flags;
+       XO-CHIP brings a second bitplane, 64KB of memory, LD I, long nnnn,
+       register range loads and stores and scrolling up. */
+    public enum InstructionSet {
+        CHIP_8,
+        SUPER_CHIP,
+        XO_CHIP
+    }
+
+    /* how far LD [I], Vx and LD Vx, [I] move I */
+    public enum IndexIncrement {
+        NONE,
+        X,
+        X_PLUS_ONE
+    }
+
+    public final InstructionSet instructionSet;
+    // SHR and SHL shift Vy into Vx rather than shifting Vx in place
+    public final boolean shiftsUseVy;
+    // OR, AND and XOR clear VF
+    public final boolean logicResetsVF;
+    public final IndexIncrement indexIncrement;
+    // sprites are cut off at the screen edges rather than wrapping around
+    public final boolean spritesClip;
+    // Bxnn jumps to xnn plus Vx rather than to nnn plus V0
+    public final boolean jumpsUseVx;
+
+    Chip8QuirkProfile(InstructionSet instructionSet, boolean shiftsUseVy, boolean logicResetsVF,
+            IndexIncrement indexIncrement, boolean spritesClip, boolean jumpsUseVx) {
+        this.instructionSet = instructionSet;
+        this.shiftsUseVy = shiftsUseVy;
+        this.logicResetsVF = logicResetsVF;
+        this.indexIncrement = indexIncrement;
+        this.spritesClip = spritesClip;
+        this.jumpsUseVx = jumpsUseVx;
+    }
+
+    public boolean isExtended() {
+        return instructionSet != InstructionSet.CHIP_8;
+    }
+
+    /* bytes of memory a machine running this profile has */
+    public int memorySize() {
+        return instructionSet == InstructionSet.XO_CHIP ? 1 << 16 : Chip8Machine.DEFAULT_MEMORY_SIZE;
+    }
+
+    /* bitplanes the screen has */
+    public int planes() {
+        return instructionSet == InstructionSet.XO_CHIP ? 2 : 1;
+    }
+
+    /* the profile named name, ignoring case and treating - as _, e.g. "super-chip" */
+    public static Chip8QuirkProfile named(String name) {
+        try {
+            return valueOf(name.trim().toUpperCase().replace('-', '_'));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException(String.format("unknown quirk profile %s", name), e);
+        }
+    }
+}
@@ -0,0 +1,304 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/* A bounded history of machine states, one per frame, to step backwards and
+   forwards through. Only the newest or current state is kept whole; every
+   other frame is stored as the XOR of its snapshot with the previous
+   frame's, run length encoded, which for most frames is a few dozen bytes
+   since little besides the cycle count changes. XOR works both ways, so
+   stepping back or forward a frame applies one delta to the current state,
+   and moving n frames costs n deltas. Every keyframeInterval frames a whole
+   snapshot, run length encoded the same way, is kept too, so seeking far
+   starts from the nearest keyframe rather than walking the whole history.
+
+   Encoded frames live in one byte array used as a ring, so the history never
+   takes more than its capacity: recording a frame that doesn't fit evicts
+   the oldest frames. Recording after stepping back drops the frames after
+   the current one, as an undo history would.
+
+   An encoded state is a series of pairs of varints, the number of bytes
+   that are the same followed by the number that differ, the differing
+   bytes following the second varint as they are XORed.
+ */
+public class Chip8Rewind {
+    public static final int DEFAULT_KEYFRAME_INTERVAL = 300;
+    public static final int DEFAULT_CAPACITY = 4 << 20;
+    // shorter runs of equal bytes are cheaper to store with the bytes around them
+    private static final int MIN_SAME_RUN = 4;
+
+    private final int stateSize;
+    private final int keyframeInterval;
+    private final byte[] arena;
+    // the current frame's state, and the next frame's while it is recorded
+    private byte[] state;
+    private byte[] scratch;
+    private ByteBuffer stateBuffer;
+    private ByteBuffer scratchBuffer;
+    private final byte[] encoded;
+
+    // frames are numbered from 0 as they are recorded; frame f's entry is in slot f & mask
+    private long[] starts;
+    private int[] deltaLengths;
+    private int[] keyLengths;
+    private int mask;
+    private long first = 0;
+    private long next = 0;
+    private long current = -1;
+    // arena positions count up forever, wrapping into the array modulo its length
+    private long writePosition = 0;
+
+    /* stateSize is the snapshot size of the machines recorded, see
+       Chip8Machine.snapshotSize; capacity is the most bytes the encoded
+       history may take */
+    public Chip8Rewind(int stateSize, int capacity, int keyframeInterval) {
+        if (keyframeInterval < 1) {
+            throw new IllegalArgumentException(String.format("a keyframe every %d frames", keyframeInterval));
+        }
+        int worstFrame = 2 * maxEncodedSize(stateSize);
+        if (capacity < 4 * worstFrame) {
+            throw new IllegalArgumentException(String.format("%d bytes is less than the %d needed for %d byte states",
+                    capacity, 4 * worstFrame, stateSize));
+        }
+        this.stateSize = stateSize;
+        this.keyframeInterval = keyframeInterval;
+        arena = new byte[capacity];
+        state = new byte[stateSize];
+        scratch = new byte[stateSize];
+        stateBuffer = ByteBuffer.wrap(state);
+        scratchBuffer = ByteBuffer.wrap(scratch);
+        encoded = new byte[worstFrame];
+        starts = new long[64];
+        deltaLengths = new int[64];
+        keyLengths = new int[64];
+        mask = 63;
+    }
+
+    public Chip8Rewind(Chip8Machine machine) {
+        this(machine.snapshotSize(), DEFAULT_CAPACITY, DEFAULT_KEYFRAME_INTERVAL);
+    }
+
+    // a pair of varints per state byte at worst, see encode
+    private static int maxEncodedSize(int stateSize) {
+        return 2 * stateSize + 10;
+    }
+
+    /* Adds machine's state as the newest frame, dropping any frames after the
+       current one first. The new frame becomes the current one. */
+    public void record(Chip8Machine machine) {
+        if (machine.snapshotSize() != stateSize) {
+            throw new IllegalArgumentException(String.format("a %d byte state in a history of %d byte states",
+                    machine.snapshotSize(), stateSize));
+        }
+        scratchBuffer.clear();
+        machine.snapshot(scratchBuffer);
+        if (current >= first) {
+            next = current + 1;
+            int slot = (int) current & mask;
+            writePosition = starts[slot] + deltaLengths[slot] + keyLengths[slot];
+        }
+        long frame = next;
+        // the oldest frame needs no delta since nothing is before it
+        int deltaLength = frame > first ? encode(scratch, state, encoded, 0) : 0;
+        int keyLength = frame % keyframeInterval == 0 ? encode(scratch, null, encoded, deltaLength) : 0;
+        int length = deltaLength + keyLength;
+
+        long start = writePosition;
+        if ((int) (start % arena.length) + length > arena.length) {
+            // entries are never split across the end of the arena
+            start += arena.length - (int) (start % arena.length);
+        }
+        while (first < next && start + length - starts[(int) first & mask] > arena.length) {
+            first++;
+        }
+        if (next - first == starts.length) {
+            grow();
+        }
+        System.arraycopy(encoded, 0, arena, (int) (start % arena.length), length);
+        int slot = (int) frame & mask;
+        starts[slot] = start;
+        deltaLengths[slot] = deltaLength;
+        keyLengths[slot] = keyLength;
+        writePosition = start + length;
+        next = frame + 1;
+        current = frame;
+
+        byte[] swap = state;
+        state = scratch;
+        scratch = swap;
+        ByteBuffer swapBuffer = stateBuffer;
+        stateBuffer = scratchBuffer;
+        scratchBuffer = swapBuffer;
+    }
+
+    private void grow() {
+        int size = starts.length * 2;
+        long[] newStarts = new long[size];
+        int[] newDeltaLengths = new int[size];
+        int[] newKeyLengths = new int[size];
+        for (long frame = first; frame < next; frame++) {
+            int from = (int) frame & mask;
+            int to = (int) frame & (size - 1);
+            newStarts[to] = starts[from];
+            newDeltaLengths[to] = deltaLengths[from];
+            newKeyLengths[to] = keyLengths[from];
+        }
+        starts = newStarts;
+        deltaLengths = newDeltaLengths;
+        keyLengths = newKeyLengths;
+        mask = size - 1;
+    }
+
+    /* number of frames that can be returned to */
+    public int getFrameCount() {
+        return (int) (next - first);
+    }
+
+    /* the current frame, counted from the oldest at 0 */
+    public int getPosition() {
+        return (int) (current - first);
+    }
+
+    /* bytes the encoded history takes, at most the capacity */
+    public long getBytesUsed() {
+        return next == first ? 0 : writePosition - starts[(int) first & mask];
+    }
+
+    public int getCapacity() {
+        return arena.length;
+    }
+
+    /* Moves up to frames frames back, or to the oldest frame, and restores
+       machine to that frame. Returns how many frames it moved. */
+    public int stepBack(Chip8Machine machine, int frames) {
+        if (next == first) {
+            return 0;
+        }
+        long target = Math.max(first, current - frames);
+        int moved = (int) (current - target);
+        seek(machine, (int) (target - first));
+        return moved;
+    }
+
+    /* the opposite of stepBack, up to the newest frame */
+    public int stepForward(Chip8Machine machine, int frames) {
+        if (next == first) {
+            return 0;
+        }
+        long target = Math.min(next - 1, current + frames);
+        int moved = (int) (target - current);
+        seek(machine, (int) (target - first));
+        return moved;
+    }
+
+    /* restores machine to the frame at position, counted from the oldest at 0 */
+    public void seek(Chip8Machine machine, int position) {
+        if (position < 0 || position >= next - first) {
+            throw new IndexOutOfBoundsException(String.format("frame %d of %d", position, next - first));
+        }
+        long target = first + position;
+        // the keyframes either side of target, if they are still held
+        long below = target - target % keyframeInterval;
+        long above = below + keyframeInterval;
+        long from = current;
+        if (hasKeyframe(below) && target - below < Math.abs(target - from)) {
+            from = below;
+        }
+        if (hasKeyframe(above) && above - target < Math.abs(target - from)) {
+            from = above;
+        }
+        if (from != current) {
+            int slot = (int) from & mask;
+            Arrays.fill(state, (byte) 0);
+            decode(arena, (int) (starts[slot] % arena.length) + deltaLengths[slot], keyLengths[slot], state);
+        }
+        // frame f's delta takes f - 1 to f and back again
+        for (long frame = from; frame > target; frame--) {
+            applyDelta(frame);
+        }
+        for (long frame = from + 1; frame <= target; frame++) {
+            applyDelta(frame);
+        }
+        current = target;
+        stateBuffer.clear();
+        machine.restore(stateBuffer);
+    }
+
+    private boolean hasKeyframe(long frame) {
+        return frame >= first && frame < next && keyLengths[(int) frame & mask] > 0;
+    }
+
+    private void applyDelta(long frame) {
+        int slot = (int) frame & mask;
+        decode(arena, (int) (starts[slot] % arena.length), deltaLengths[slot], state);
+    }
+
+    /* Writes a XOR b, or a alone when b is null, to out at offset and returns
+       the number of bytes written. */
+    private int encode(byte[] a, byte[] b, byte[] out, int offset) {
+        int at = offset;
+        int i = 0;
+        while (i < stateSize) {
+            int same = i;
+            while (i < stateSize && differs(a, b, i) == 0) {
+                i++;
+            }
+            same = i - same;
+            // up to the last differing byte before a long enough run of equal ones
+            int end = i;
+            for (int j = i; j < stateSize && j - end < MIN_SAME_RUN; j++) {
+                if (differs(a, b, j) != 0) {
+                    end = j + 1;
+                }
+            }
+            at = writeVarInt(out, at, same);
+            at = writeVarInt(out, at, end - i);
+            for (; i < end; i++) {
+                out[at++] = (byte) differs(a, b, i);
+            }
+        }
+        return at - offset;
+    }
+
+    private static int differs(byte[] a, byte[] b, int i) {
+        return b == null ? a[i] : a[i] ^ b[i];
+    }
+
+    // XORs the encoded bytes at in[offset, offset + length) into target
+    private static void decode(byte[] in, int offset, int length, byte[] target) {
+        int at = offset;
+        int end = offset + length;
+        int i = 0;
+        while (at < end) {
+            int same = 0;
+            for (int shift = 0; ; shift += 7) {
+                int b = in[at++];
+                same |= (b & 0x7f) << shift;
+                if (b >= 0) {
+                    break;
+                }
+            }
+            int differing = 0;
+            for (int shift = 0; ; shift += 7) {
+                int b = in[at++];
+                differing |= (b & 0x7f) << shift;
+                if (b >= 0) {
+                    break;
+                }
+            }
+            i += same;
+            for (int stop = i + differing; i < stop; i++) {
+                target[i] ^= in[at++];
+            }
+        }
+    }
+
+    // seven bits at a time, low bits first, as Chip8InputRecorder writes varints
+    private static int writeVarInt(byte[] out, int at, int value) {
+        while ((value & ~0x7f) != 0) {
+            out[at++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out[at++] = (byte) value;
+        return at;
+    }
+}
@@ -0,0 +1,43 @@
+/* Small programs exercising the different parts of the machine, shared by the
+   benchmark and the allocation gate. All of them loop forever.
+ */
+public final class Chip8SampleRoms {
+    public static final int[] ARITHMETIC = {
+            0x6000, 0x6101, 0x8014, 0x8205, 0x8306, 0x7401, 0x8543, 0x1204};
+    public static final int[] SPRITES = {
+            0x6000, 0x6100, 0x6200, 0x630F, 0xF229, 0xD015, 0x7005, 0x7103, 0x7201, 0x8232, 0x1208};
+    public static final int[] TIMER_POLL = {
+            0x6002, 0xF015, 0xF107, 0x3100, 0x1204, 0x1200};
+    public static final int[] MEMORY = {
+            0xA300, 0x7A01, 0xFA33, 0xF265, 0xF555, 0x1202};
+    // random sprites at random positions, with key checks in between
+    public static final int[] RANDOM = {
+            0xC03F, 0xC11F, 0xC20F, 0xF229, 0xD015, 0xE39E, 0x7301, 0xE3A1, 0x7301, 0x1200};
+    // clears the screen before every sprite, the way most games draw a frame
+    public static final int[] CLEAR_DRAW = {
+            0x6000, 0x6100, 0x00E0, 0xF029, 0xD015, 0x7005, 0x1204};
+
+    public static final String[] NAMES = {"arithmetic", "sprites", "timerPoll", "memory", "random", "clearDraw"};
+    public static final int[][] PROGRAMS = {ARITHMETIC, SPRITES, TIMER_POLL, MEMORY, RANDOM, CLEAR_DRAW};
+
+    private Chip8SampleRoms() {
+    }
+
+    /* the program as ROM bytes, one big endian opcode per word */
+    public static byte[] toBytes(int[] program) {
+        byte[] rom = new byte[program.length * 2];
+        for (int i = 0; i < program.length; i++) {
+            rom[2 * i] = (byte) (program[i] >> 8);
+            rom[2 * i + 1] = (byte) program[i];
+        }
+        return rom;
+    }
+
+    /* a machine with the program loaded and timers counting in cycles */
+    public static Chip8Machine machineRunning(int[] program) {
+        Chip8Machine machine = new Chip8Machine();
+        machine.getTimers().setCycleMode(Chip8Timers.DEFAULT_CYCLES_PER_TICK);
+        machine.loadRom(toBytes(program));
+        return machine;
+    }
+}
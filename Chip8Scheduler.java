@@ -0,0 +1,178 @@
+import java.util.concurrent.locks.LockSupport;
+
+/* Runs a Chip8Machine in 60Hz frames. Each frame executes a fixed budget of
+   instructions as one tight batch, then waits for the next frame boundary by
+   parking for most of the gap and spinning for the last stretch, which keeps
+   the frame rate steady regardless of the OS timer resolution. In turbo mode
+   frames run back to back with no waiting at all, except while the machine
+   waits for a key, when the thread parks until one is pressed. Frames the
+   machine spent mostly idle, see Chip8Machine.setFastForward, park for the
+   whole gap since nothing on screen depends on their exact timing.
+
+   With a Chip8Rewind set every frame is recorded into it, and while
+   rewinding each frame steps back through that history instead of running,
+   at the normal frame rate even in turbo mode.
+ */
+public class Chip8Scheduler {
+    public static final int FRAMES_PER_SECOND = 60;
+    public static final int DEFAULT_INSTRUCTIONS_PER_FRAME = 12;
+    private static final long FRAME_NANOS = 1_000_000_000L / FRAMES_PER_SECOND;
+    // park until this close to the deadline, then spin
+    private static final long SPIN_NANOS = 1_000_000L;
+    private static final long IPS_WINDOW_NANOS = 1_000_000_000L;
+
+    private final Chip8Machine machine;
+    private volatile int instructionsPerFrame = DEFAULT_INSTRUCTIONS_PER_FRAME;
+    private volatile boolean turbo = false;
+    private volatile boolean running = false;
+    private volatile double instructionsPerSecond = 0;
+    private Runnable frameListener;
+    private Chip8InputSource inputSource;
+    private Chip8Rewind rewind;
+    private volatile boolean rewinding = false;
+    private long frame = 0;
+    private boolean idleFrame = false;
+
+    private long windowStart;
+    private long windowInstructions;
+
+    public Chip8Scheduler(Chip8Machine machine) {
+        this.machine = machine;
+    }
+
+    public void setInstructionsPerFrame(int instructionsPerFrame) {
+        if (instructionsPerFrame < 1) {
+            throw new IllegalArgumentException(String.format("%d instructions per frame", instructionsPerFrame));
+        }
+        this.instructionsPerFrame = instructionsPerFrame;
+    }
+
+    public int getInstructionsPerFrame() {
+        return instructionsPerFrame;
+    }
+
+    public void setTurbo(boolean turbo) {
+        this.turbo = turbo;
+    }
+
+    public boolean isTurbo() {
+        return turbo;
+    }
+
+    /* called on the emulator thread after every frame, e.g. to request a repaint */
+    public void setFrameListener(Runnable frameListener) {
+        this.frameListener = frameListener;
+    }
+
+    /* updated with the frame number before every frame */
+    public void setInputSource(Chip8InputSource inputSource) {
+        this.inputSource = inputSource;
+    }
+
+    /* records every frame into rewind, or stops recording when null */
+    public void setRewind(Chip8Rewind rewind) {
+        this.rewind = rewind;
+    }
+
+    /* while set, frames step back one recorded frame each instead of running;
+       running on again drops the frames stepped back over */
+    public void setRewinding(boolean rewinding) {
+        this.rewinding = rewinding;
+    }
+
+    public boolean isRewinding() {
+        return rewinding;
+    }
+
+    /* instructions executed per second, averaged over the last complete second */
+    public double getInstructionsPerSecond() {
+        return instructionsPerSecond;
+    }
+
+    public void stop() {
+        running = false;
+    }
+
+    /* runs frames on the calling thread until stop is called */
+    public void run() {
+        running = true;
+        long deadline = System.nanoTime();
+        windowStart = deadline;
+        windowInstructions = 0;
+        while (running) {
+            runFrame();
+            if (turbo && !rewinding) {
+                if (machine.isWaitingForKey()) {
+                    // at most a frame, so timers keep counting down and stop is noticed
+                    machine.getKeyPad().awaitPress(FRAME_NANOS);
+                }
+                deadline = System.nanoTime();
+            } else {
+                deadline += FRAME_NANOS;
+                long now = System.nanoTime();
+                if (now - deadline > FRAME_NANOS) {
+                    // more than a frame behind, e.g. after a stall: don't try to catch up
+                    deadline = now;
+                } else if (idleFrame) {
+                    LockSupport.parkNanos(deadline - now);
+                } else {
+                    waitUntil(deadline);
+                }
+            }
+        }
+    }
+
+    /* runs one frame's worth of instructions without pacing */
+    public int runFrame() {
+        if (rewinding && rewind != null) {
+            rewind.stepBack(machine, 1);
+            idleFrame = true;
+            if (frameListener != null) {
+                frameListener.run();
+            }
+            return 0;
+        }
+        Chip8Metrics metrics = machine.getMetrics();
+        long start = metrics != null ? System.nanoTime() : 0;
+        if (inputSource != null) {
+            inputSource.update(machine.getKeyPad(), frame);
+        }
+        frame++;
+        long idleBefore = machine.getIdleCycles();
+        int executed = machine.run(instructionsPerFrame);
+        idleFrame = 2 * (machine.getIdleCycles() - idleBefore) >= executed;
+        if (rewind != null) {
+            rewind.record(machine);
+        }
+        if (metrics != null) {
+            metrics.getFrameTimes().record(System.nanoTime() - start);
+        }
+        if (frameListener != null) {
+            frameListener.run();
+        }
+        recordInstructions(executed);
+        return executed;
+    }
+
+    private void recordInstructions(int executed) {
+        windowInstructions += executed;
+        long now = System.nanoTime();
+        long elapsed = now - windowStart;
+        if (elapsed >= IPS_WINDOW_NANOS) {
+            instructionsPerSecond = windowInstructions * 1.0E9 / elapsed;
+            windowStart = now;
+            windowInstructions = 0;
+        }
+    }
+
+    private static void waitUntil(long deadline) {
+        long remaining = deadline - System.nanoTime();
+        while (remaining > SPIN_NANOS) {
+            LockSupport.parkNanos(remaining - SPIN_NANOS);
+            remaining = deadline - System.nanoTime();
+        }
+        while (deadline - System.nanoTime() > 0) {
+            Thread.onSpinWait();
+        }
+    }
+}
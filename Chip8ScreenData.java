@@ -1,15 +1,96 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
 /* A singleton class used to keep track of and update the screen pixel values.
    The Screen class will use this to render the chip8 screen.
+   Each row is packed into longs, leftmost pixel in the most significant
+   bit, so a sprite row is drawn with a shift or rotate, an AND and an XOR,
+   and scrolling moves whole words. A screen that can go hi-res keeps two
+   words per row, since a 128 pixel row needs both; in lo-res only the first
+   is used. XO-CHIP screens have a second bitplane laid out the same way,
+   and drawing, clearing and scrolling apply to the selected planes.
+   Rows are kept in pages of ROWS_PER_PAGE that forks share until one side
+   writes to them, the same way Chip8PagedMemoryStore shares memory.
  */
 public class Chip8ScreenData {
-    // original chip8 screen dimensions
-    private static int width = 64;
-    private static int height = 32;
+    // original chip8 screen dimensions, and SUPER-CHIP's hi-res ones
+    public static final int LORES_WIDTH = 64;
+    public static final int LORES_HEIGHT = 32;
+    public static final int HIRES_WIDTH = 128;
+    public static final int HIRES_HEIGHT = 64;
+    public static final int MAX_PLANES = 2;
+
+    private static final int PAGE_SHIFT = 3;
+    private static final int ROWS_PER_PAGE = 1 << PAGE_SHIFT;
+    private static final int PAGE_MASK = ROWS_PER_PAGE - 1;
+    // never written, since no screen owns them; one per row width in words
+    private static final long[][] BLANK_PAGES = {new long[ROWS_PER_PAGE], new long[2 * ROWS_PER_PAGE]};
 
-    private int[][] data;
+    // 1 when rows are two words wide, so hi-res is possible
+    private final int wordShift;
+    private final int planes;
+    private final int pagesPerPlane;
+    private final long[][] pages;
+    // bit p is set while pages[p] belongs to this screen alone
+    private int ownedPages;
+    // bit y is set once row y changes, until the bits are taken
+    private long dirtyRows;
+    private int width = LORES_WIDTH;
+    private int height = LORES_HEIGHT;
+    // bit p is set for each plane drawing applies to
+    private int selectedPlanes = 1;
 
+    /* the original 64x32 screen */
     public Chip8ScreenData() {
-        data = new int[height][width];
+        this(false, 1);
+    }
+
+    /* a screen that can switch to hi-res when hires is true, with planes bitplanes */
+    public Chip8ScreenData(boolean hires, int planes) {
+        if (planes < 1 || planes > MAX_PLANES) {
+            throw new IllegalArgumentException(String.format("%d bitplanes", planes));
+        }
+        wordShift = hires ? 1 : 0;
+        this.planes = planes;
+        pagesPerPlane = (hires ? HIRES_HEIGHT : LORES_HEIGHT) >> PAGE_SHIFT;
+        pages = new long[planes * pagesPerPlane][];
+        Arrays.fill(pages, BLANK_PAGES[wordShift]);
+    }
+
+    private Chip8ScreenData(Chip8ScreenData parent) {
+        wordShift = parent.wordShift;
+        planes = parent.planes;
+        pagesPerPlane = parent.pagesPerPlane;
+        pages = parent.pages.clone();
+        dirtyRows = parent.dirtyRows;
+        width = parent.width;
+        height = parent.height;
+        selectedPlanes = parent.selectedPlanes;
+    }
+
+    /* a screen showing the same pixels that shares its rows with this one
+       until either side draws */
+    Chip8ScreenData fork() {
+        ownedPages = 0;
+        return new Chip8ScreenData(this);
+    }
+
+    private long[] writablePage(int page) {
+        if ((ownedPages & (1 << page)) == 0) {
+            pages[page] = pages[page].clone();
+            ownedPages |= 1 << page;
+        }
+        return pages[page];
+    }
+
+    /* Blanks a page. One this screen owns is zeroed where it is, so the next
+       draw needn't copy it again; a shared one goes back to the blank page. */
+    private void clearPage(int page) {
+        if ((ownedPages & (1 << page)) != 0) {
+            Arrays.fill(pages[page], 0);
+        } else {
+            pages[page] = BLANK_PAGES[wordShift];
+        }
     }
 
     public int getWidth() {
@@ -20,8 +101,39 @@ public class Chip8ScreenData {
         return height;
     }
 
+    public boolean isHires() {
+        return width == HIRES_WIDTH;
+    }
+
+    /* switches between 64x32 and 128x64, clearing every plane */
+    public void setHires(boolean hires) {
+        if (hires && wordShift == 0) {
+            throw new IllegalStateException("this screen has no hi-res mode");
+        }
+        width = hires ? HIRES_WIDTH : LORES_WIDTH;
+        height = hires ? HIRES_HEIGHT : LORES_HEIGHT;
+        for (int page = 0; page < pages.length; page++) {
+            clearPage(page);
+        }
+        dirtyRows |= allRows();
+    }
+
+    public int getPlanes() {
+        return planes;
+    }
+
+    public int getSelectedPlanes() {
+        return selectedPlanes;
+    }
+
+    /* makes drawing, clearing and scrolling apply to the planes set in mask;
+       planes the screen doesn't have are ignored */
+    public void selectPlanes(int mask) {
+        selectedPlanes = mask & ((1 << planes) - 1);
+    }
+
     private boolean legalPixelCoordinate(int x, int y) {
-        if(y >= data.length || y < 0 || x >= data[0].length || x < 0) {
+        if(y >= height || y < 0 || x >= width || x < 0) {
             return false;
         }
         return true;
@@ -31,54 +143,300 @@ public class Chip8ScreenData {
         throw new IndexOutOfBoundsException(String.format("invalid coordinates (x,y) = (%d,%d)", x, y));
     }
 
+    private static long pixelMask(int x) {
+        return Long.MIN_VALUE >>> x;
+    }
+
+    // index of row y's first word within its page
+    private int rowOffset(int y) {
+        return (y & PAGE_MASK) << wordShift;
+    }
+
+    private int pageOf(int plane, int y) {
+        return plane * pagesPerPlane + (y >> PAGE_SHIFT);
+    }
+
     public void setPixel(int x, int y, boolean on) {
         if(legalPixelCoordinate(x,y)) {
+            long[] page = writablePage(y >> PAGE_SHIFT);
+            int at = rowOffset(y) + (x >> 6);
             if(on) {
-                data[y][x] = 1;
+                page[at] |= pixelMask(x);
             } else {
-                data[y][x] = 0;
+                page[at] &= ~pixelMask(x);
             }
+            dirtyRows |= 1L << y;
         } else {
             throwOutOfBoundsException(x, y);
         }
     }
 
 
+    /* clears the selected planes */
     public void clearScreen() {
-        for(int x = 0; x < data.length; x++) {
-            for(int y = 0; y < data[0].length; y++) {
-                data[x][y] = 0;
+        for (int plane = 0; plane < planes; plane++) {
+            if ((selectedPlanes & (1 << plane)) != 0) {
+                for (int page = plane * pagesPerPlane; page < (plane + 1) * pagesPerPlane; page++) {
+                    clearPage(page);
+                }
             }
         }
+        dirtyRows |= allRows();
+    }
+
+    private long allRows() {
+        return height == 64 ? -1L : (1L << height) - 1;
+    }
+
+    /* returns a mask with bit y set for every row that changed since the last
+       call to takeDirtyRows */
+    public long getDirtyRows() {
+        return dirtyRows;
+    }
+
+    /* returns the dirty row mask and clears it */
+    public long takeDirtyRows() {
+        long dirty = dirtyRows;
+        dirtyRows = 0;
+        return dirty;
     }
 
     public boolean getPixelValue(int x, int y) {
         if(legalPixelCoordinate(x, y)) {
-            if(data[y][x] == 1) {
-                return true;
-            }
-            return false;
+            return (getRowWord(0, y, x >> 6) & pixelMask(x)) != 0;
         }
         System.out.println(String.format("failed at: %d, %d", x, y));
         throw new IndexOutOfBoundsException();
     }
 
+    /* returns the first 64 pixels of row y of the first plane, leftmost pixel
+       in the most significant bit; in lo-res that is the whole row */
+    public long getRow(int y) {
+        return pages[y >> PAGE_SHIFT][rowOffset(y)];
+    }
+
+    /* word 0 or 1 of row y of plane, packed as getRow packs it */
+    public long getRowWord(int plane, int y, int word) {
+        return pages[pageOf(plane, y)][rowOffset(y) + word];
+    }
+
+    int stateSize() {
+        return 4 + 4 + 8 * (pages.length << (PAGE_SHIFT + wordShift));
+    }
+
+    void writeState(ByteBuffer out) {
+        out.putInt(height);
+        out.putInt(selectedPlanes);
+        for (long[] page : pages) {
+            for (long word : page) {
+                out.putLong(word);
+            }
+        }
+    }
+
+    /* throws unless the state written by writeState at offset in in fits
+       this screen; returns the offset just past it */
+    int checkState(ByteBuffer in, int offset) {
+        int savedHeight = in.getInt(offset);
+        if (savedHeight != LORES_HEIGHT && (savedHeight != HIRES_HEIGHT || wordShift == 0)) {
+            throw new IllegalArgumentException(String.format("save state has %d rows, this screen can't show that",
+                    savedHeight));
+        }
+        return offset + stateSize();
+    }
+
+    /* the state must have passed checkState */
+    void readState(ByteBuffer in) {
+        int savedHeight = in.getInt();
+        height = savedHeight;
+        width = savedHeight == HIRES_HEIGHT ? HIRES_WIDTH : LORES_WIDTH;
+        selectPlanes(in.getInt());
+        int words = ROWS_PER_PAGE << wordShift;
+        for (int page = 0; page < pages.length; page++) {
+            for (int i = 0; i < words; i++) {
+                long word = in.getLong();
+                if (pages[page][i] != word) {
+                    writablePage(page)[i] = word;
+                }
+            }
+        }
+        dirtyRows |= allRows();
+    }
+
+    /* a 64 bit FNV-1a hash of the visible pixels, for comparing screens across runs */
+    public long contentHash() {
+        long hash = 0xcbf29ce484222325L;
+        int words = isHires() ? 2 : 1;
+        for (int plane = 0; plane < planes; plane++) {
+            for (int y = 0; y < height; y++) {
+                for (int word = 0; word < words; word++) {
+                    long row = getRowWord(plane, y, word);
+                    for (int shift = 56; shift >= 0; shift -= 8) {
+                        hash ^= (row >>> shift) & 0xff;
+                        hash *= 0x100000001b3L;
+                    }
+                }
+            }
+        }
+        return hash;
+    }
+
+    /* XORs an 8 pixel sprite row onto the lo-res screen with its left edge at x,
+       wrapping around both edges. returns true for collision, false otherwise */
+    public boolean drawSpriteRow(int spriteRow, int x, int y) {
+        // rotating by x also wraps pixels past the right edge back to the left
+        long sprite = Long.rotateRight((long)(spriteRow & 0xff) << 56, x);
+        int row = y % height;
+        if (sprite == 0) {
+            return false;
+        }
+        long[] page = writablePage(row >> PAGE_SHIFT);
+        int at = rowOffset(row);
+        long old = page[at];
+        page[at] = old ^ sprite;
+        dirtyRows |= 1L << row;
+        return (old & sprite) != 0;
+    }
+
+    /* like drawSpriteRow, but pixels past the right edge are dropped rather
+       than wrapped; x and y must be on the screen */
+    public boolean drawClippedSpriteRow(int spriteRow, int x, int y) {
+        long sprite = ((long)(spriteRow & 0xff) << 56) >>> x;
+        if (sprite == 0) {
+            return false;
+        }
+        long[] page = writablePage(y >> PAGE_SHIFT);
+        int at = rowOffset(y);
+        long old = page[at];
+        page[at] = old ^ sprite;
+        dirtyRows |= 1L << y;
+        return (old & sprite) != 0;
+    }
+
+    /* XORs the low bitsWide bits of bits, 8 or 16, onto row y of plane with
+       the leftmost at x, in either resolution. Pixels past the right edge wrap
+       around to the left unless clip is set. x and y must be on the screen.
+       returns true for collision, false otherwise */
+    public boolean drawSpriteBits(int plane, int bits, int bitsWide, int x, int y, boolean clip) {
+        long sprite = (long) bits << (64 - bitsWide);
+        if (sprite == 0) {
+            return false;
+        }
+        int page = pageOf(plane, y);
+        int at = rowOffset(y);
+        if (width == LORES_WIDTH) {
+            sprite = clip ? sprite >>> x : Long.rotateRight(sprite, x);
+            return xorWord(page, at, sprite, y);
+        }
+        boolean collided;
+        if (x < 64) {
+            collided = xorWord(page, at, sprite >>> x, y);
+            // x + bitsWide may reach into the second word; a shift by 64 would be a shift by 0
+            if (x > 64 - bitsWide) {
+                collided |= xorWord(page, at + 1, sprite << (64 - x), y);
+            }
+        } else {
+            collided = xorWord(page, at + 1, sprite >>> (x - 64), y);
+            if (!clip && x > HIRES_WIDTH - bitsWide) {
+                // the part past the right edge comes back in at the left
+                collided |= xorWord(page, at, sprite << (HIRES_WIDTH - x), y);
+            }
+        }
+        return collided;
+    }
+
+    private boolean xorWord(int page, int at, long sprite, int y) {
+        if (sprite == 0) {
+            return false;
+        }
+        long[] words = writablePage(page);
+        long old = words[at];
+        words[at] = old ^ sprite;
+        dirtyRows |= 1L << y;
+        return (old & sprite) != 0;
+    }
+
+    /* moves the selected planes down n rows, blanking the rows at the top */
+    public void scrollDown(int n) {
+        scrollRows(Math.min(n, height), true);
+    }
+
+    /* moves the selected planes up n rows, blanking the rows at the bottom */
+    public void scrollUp(int n) {
+        scrollRows(Math.min(n, height), false);
+    }
+
+    private void scrollRows(int n, boolean down) {
+        if (n == 0) {
+            return;
+        }
+        int words = isHires() ? 2 : 1;
+        for (int plane = 0; plane < planes; plane++) {
+            if ((selectedPlanes & (1 << plane)) == 0) {
+                continue;
+            }
+            for (int i = 0; i < height; i++) {
+                // down walks up from the bottom so no row is overwritten before it moves
+                int y = down ? height - 1 - i : i;
+                int from = down ? y - n : y + n;
+                long[] page = writablePage(pageOf(plane, y));
+                int at = rowOffset(y);
+                if (from >= 0 && from < height) {
+                    System.arraycopy(pages[pageOf(plane, from)], rowOffset(from), page, at, words);
+                } else {
+                    Arrays.fill(page, at, at + words, 0);
+                }
+            }
+        }
+        dirtyRows |= allRows();
+    }
+
+    /* moves the selected planes left n pixels, n below 64, blanking the right edge */
+    public void scrollLeft(int n) {
+        for (int plane = 0; plane < planes; plane++) {
+            if ((selectedPlanes & (1 << plane)) == 0) {
+                continue;
+            }
+            for (int y = 0; y < height; y++) {
+                long[] page = writablePage(pageOf(plane, y));
+                int at = rowOffset(y);
+                if (isHires()) {
+                    page[at] = (page[at] << n) | (page[at + 1] >>> (64 - n));
+                    page[at + 1] <<= n;
+                } else {
+                    page[at] <<= n;
+                }
+            }
+        }
+        dirtyRows |= allRows();
+    }
+
+    /* moves the selected planes right n pixels, n below 64, blanking the left edge */
+    public void scrollRight(int n) {
+        for (int plane = 0; plane < planes; plane++) {
+            if ((selectedPlanes & (1 << plane)) == 0) {
+                continue;
+            }
+            for (int y = 0; y < height; y++) {
+                long[] page = writablePage(pageOf(plane, y));
+                int at = rowOffset(y);
+                if (isHires()) {
+                    page[at + 1] = (page[at + 1] >>> n) | (page[at] << (64 - n));
+                    page[at] >>>= n;
+                } else {
+                    page[at] >>>= n;
+                }
+            }
+        }
+        dirtyRows |= allRows();
+    }
+
     /* returns true for collision, false otherwise */
     public boolean fillOutSprite(int[] sprite, int start_x, int start_y) {
         boolean collided = false;
         for (int row = 0; row < sprite.length; row++) {
-            int b = sprite[row];
-            for (int col = 0; col < 8; col++) {
-                boolean on = BitUtils.readNthBitFromLeft((short)b, col);
-
-                if (on) {
-                    if(getPixelValue((start_x+col) % width, ((start_y+row) % height))) {
-                        collided = true;
-                        setPixel((start_x+col) % width, (start_y+row) % height, false);
-                    } else {
-                        setPixel((start_x + col) % width, (start_y + row) % height, true);
-                    }
-                }
+            if (drawSpriteRow(sprite[row], start_x, start_y + row)) {
+                collided = true;
             }
         }
         return collided;
@@ -0,0 +1,53 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/* Presses and releases keys at given frames, for running ROMs headless.
+   A script is a whitespace separated list of frame:+key to press a key and
+   frame:-key to release it, with the key in hex, e.g. "30:+5 34:-5 90:+a".
+   Events must be in frame order.
+ */
+public class Chip8ScriptedInput implements Chip8InputSource {
+    private final long[] frames;
+    // key, negated and less one for a release
+    private final int[] keys;
+    private int next = 0;
+
+    public Chip8ScriptedInput(String script) {
+        List<String> events = new ArrayList<>();
+        for (String event : script.trim().split("\\s+")) {
+            if (!event.isEmpty()) {
+                events.add(event);
+            }
+        }
+        frames = new long[events.size()];
+        keys = new int[events.size()];
+        for (int i = 0; i < events.size(); i++) {
+            String event = events.get(i);
+            int colon = event.indexOf(':');
+            if (colon < 0 || colon + 2 >= event.length() || "+-".indexOf(event.charAt(colon + 1)) < 0) {
+                throw new IllegalArgumentException(String.format("bad key event %s", event));
+            }
+            frames[i] = Long.parseLong(event.substring(0, colon));
+            int key = Integer.parseInt(event.substring(colon + 2), 16);
+            if (key < 0 || key >= Chip8KeyPad.NUM_KEYS) {
+                throw new IllegalArgumentException(String.format("bad key event %s", event));
+            }
+            if (i > 0 && frames[i] < frames[i - 1]) {
+                throw new IllegalArgumentException(String.format("key event %s is out of order", event));
+            }
+            keys[i] = event.charAt(colon + 1) == '+' ? key : -key - 1;
+        }
+    }
+
+    @Override
+    public void update(Chip8KeyPad keyPad, long frame) {
+        while (next < frames.length && frames[next] <= frame) {
+            int key = keys[next++];
+            if (key >= 0) {
+                keyPad.press(key);
+            } else {
+                keyPad.release(-key - 1);
+            }
+        }
+    }
+}
@@ -0,0 +1,91 @@
+/* Drives Chip8Machine through the interpreter, running the instruction
+   sequences a program repeats most as superinstructions that
+   Chip8Machine.interpretFused executes in a single dispatch. While
+   interpreting it counts, for each address, how often the instruction there
+   was followed straight on by the next one, and by the two after it. Once a
+   pair has run FUSE_THRESHOLD times, Chip8Instruction.fuse is asked for a
+   superinstruction; the third instruction goes in too when the triple made
+   up at least half the pair's runs.
+
+   The bytes a superinstruction was fused from are flagged in Chip8Memory the
+   way compiled blocks are, so rewriting them drops it and the counting starts
+   over. A jump or skip into the middle of one needs no care: it lands on the
+   ordinary decoded instruction at that address.
+ */
+final class Chip8SuperinstructionEngine {
+    static final int FUSE_THRESHOLD = 32;
+    private static final int MAX_FUSED_BYTES = 6;
+
+    private final Chip8Machine machine;
+    private final Chip8Memory memory;
+    private final Chip8Instruction[] fused;
+    private final int[] pairCounts;
+    private final int[] tripleCounts;
+    // addresses of the last two instructions interpreted, -1 after anything else
+    private int previous = -1;
+    private int beforePrevious = -1;
+    private int fusedCount;
+
+    Chip8SuperinstructionEngine(Chip8Machine machine, Chip8Memory memory) {
+        this.machine = machine;
+        this.memory = memory;
+        fused = new Chip8Instruction[memory.getSize()];
+        pairCounts = new int[memory.getSize()];
+        tripleCounts = new int[memory.getSize()];
+        memory.setSuperinstructions(this);
+    }
+
+    /* runs one superinstruction or one interpreted instruction and returns how
+       many instructions that was; superinstructions longer than limit are
+       interpreted instead */
+    int step(int limit) {
+        int pc = machine.nextInstructionAddress();
+        Chip8Instruction superinstruction = fused[pc];
+        if (superinstruction != null && superinstruction.length <= limit) {
+            previous = -1;
+            beforePrevious = -1;
+            return machine.interpretFused(superinstruction);
+        }
+        machine.interpret();
+        if (previous == pc - 2) {
+            if (beforePrevious == pc - 4) {
+                tripleCounts[beforePrevious]++;
+            }
+            if (++pairCounts[previous] == FUSE_THRESHOLD) {
+                fuse(previous);
+            }
+        }
+        beforePrevious = previous;
+        previous = pc;
+        return 1;
+    }
+
+    private void fuse(int head) {
+        Chip8Instruction third = null;
+        if (head + 5 < memory.getSize() && 2 * tripleCounts[head] >= pairCounts[head]) {
+            third = memory.getDecodedInstructionAt(head + 4);
+        }
+        Chip8Instruction superinstruction = Chip8Instruction.fuse(memory.getDecodedInstructionAt(head),
+                memory.getDecodedInstructionAt(head + 2), third);
+        // flagged either way, so new bytes here get counted and tried afresh
+        memory.markCode(head, Math.min(head + MAX_FUSED_BYTES, memory.getSize()));
+        if (superinstruction != null) {
+            fused[head] = superinstruction;
+            fusedCount++;
+        }
+    }
+
+    /* number of superinstructions made so far, including any since dropped */
+    int getFusedCount() {
+        return fusedCount;
+    }
+
+    /* called by Chip8Memory when a flagged byte is written */
+    void invalidate(int idx) {
+        for (int head = Math.max(0, idx - MAX_FUSED_BYTES + 1); head <= idx; head++) {
+            fused[head] = null;
+            pairCounts[head] = 0;
+            tripleCounts[head] = 0;
+        }
+    }
+}
@@ -1,6 +1,14 @@
-/* A class to simulate the chip8 60Hz timer
+import java.nio.ByteBuffer;
+
+/* A class to simulate the chip8 60Hz timer.
+   In wall clock mode DT and ST count down with System.nanoTime. In cycle mode
+   they count down once every cyclesPerTick emulated instructions, so a run is
+   reproducible regardless of how fast the host executes it, and the machine
+   does no timer work at all while both timers are zero.
  */
 public class Chip8Timers {
+    public static final int DEFAULT_CYCLES_PER_TICK = Chip8Scheduler.DEFAULT_INSTRUCTIONS_PER_FRAME;
+
     private double FREQ_PER_NANOSECOND = 1.0E9/60; // 1/60 seconds worth of nanoseconds
     // needed to access DT and ST
     private Chip8Machine machine;
@@ -14,10 +22,104 @@ public class Chip8Timers {
     private boolean DTActive = false;
     private boolean STActive = false;
 
+    private boolean cycleMode = false;
+    private int cyclesPerTick = DEFAULT_CYCLES_PER_TICK;
+
     public Chip8Timers(Chip8Machine machine) {
         this.machine = machine;
     }
 
+    /* timers for machine, a fork of parent's machine, in the same mode and state as parent's */
+    Chip8Timers(Chip8Machine machine, Chip8Timers parent) {
+        this.machine = machine;
+        DTstart = parent.DTstart;
+        STstart = parent.STstart;
+        DTActive = parent.DTActive;
+        STActive = parent.STActive;
+        cycleMode = parent.cycleMode;
+        cyclesPerTick = parent.cyclesPerTick;
+    }
+
+    /* counts DT and ST down once every cyclesPerTick instructions */
+    public void setCycleMode(int cyclesPerTick) {
+        if (cyclesPerTick < 1) {
+            throw new IllegalArgumentException(String.format("%d cycles per tick", cyclesPerTick));
+        }
+        this.cycleMode = true;
+        this.cyclesPerTick = cyclesPerTick;
+        machine.setTimerDeadline(Long.MAX_VALUE);
+        armed();
+    }
+
+    /* counts DT and ST down in real time, polling the clock every instruction */
+    public void setWallClockMode() {
+        cycleMode = false;
+        DTActive = false;
+        STActive = false;
+        machine.setTimerDeadline(0);
+    }
+
+    public boolean isCycleMode() {
+        return cycleMode;
+    }
+
+    public int getCyclesPerTick() {
+        return cyclesPerTick;
+    }
+
+    static final int STATE_SIZE = 5;
+
+    void writeState(ByteBuffer out) {
+        out.put((byte) (cycleMode ? 1 : 0));
+        out.putInt(cyclesPerTick);
+    }
+
+    /* throws unless the state written by writeState at offset in in is
+       usable; returns the offset just past it */
+    static int checkState(ByteBuffer in, int offset) {
+        int savedCyclesPerTick = in.getInt(offset + 1);
+        if (savedCyclesPerTick <= 0) {
+            throw new IllegalArgumentException(String.format("save state ticks every %d cycles", savedCyclesPerTick));
+        }
+        return offset + STATE_SIZE;
+    }
+
+    /* wall clock progress towards the next tick isn't saved; it restarts on restore */
+    void readState(ByteBuffer in) {
+        cycleMode = in.get() != 0;
+        cyclesPerTick = in.getInt();
+        DTActive = false;
+        STActive = false;
+    }
+
+    /* called by the machine whenever DT or ST is loaded */
+    void armed() {
+        if (cycleMode && machine.getTimerDeadline() == Long.MAX_VALUE && (machine.getDT() > 0 || machine.getST() > 0)) {
+            // ticks stay on multiples of cyclesPerTick however the timers were started
+            machine.setTimerDeadline((machine.getCycles() / cyclesPerTick + 1) * cyclesPerTick);
+        }
+    }
+
+    /* called by the machine once its cycle count reaches the deadline it was given */
+    void tick() {
+        if (!cycleMode) {
+            update();
+            machine.setTimerDeadline(machine.getCycles() + 1);
+            return;
+        }
+        if (machine.getDT() > 0) {
+            machine.decDT();
+        }
+        if (machine.getST() > 0) {
+            machine.decST();
+        }
+        if (machine.getDT() > 0 || machine.getST() > 0) {
+            machine.setTimerDeadline(machine.getTimerDeadline() + cyclesPerTick);
+        } else {
+            machine.setTimerDeadline(Long.MAX_VALUE);
+        }
+    }
+
     private void updateDT() {
         if (machine.getDT() > 0) {
             if (DTActive) {
@@ -61,4 +163,3 @@ public class Chip8Timers {
         updateST();
     }
 }
-
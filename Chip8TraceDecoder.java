@@ -0,0 +1,89 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/* Prints a trace written by Chip8Tracer as one line per instruction.
+
+   usage: Chip8TraceDecoder <trace> [--quirks profile]
+
+   Opcodes are named in the instruction set of the profile the traced
+   machine ran, LEGACY by default.
+ */
+public class Chip8TraceDecoder {
+    /* writes every record in trace to out as text, naming opcodes as plain chip8 */
+    public static long decode(Path trace, Writer out) throws IOException {
+        return decode(trace, Chip8QuirkProfile.InstructionSet.CHIP_8, out);
+    }
+
+    /* writes every record in trace to out as text, naming opcodes in set */
+    public static long decode(Path trace, Chip8QuirkProfile.InstructionSet set, Writer out) throws IOException {
+        try (FileChannel channel = FileChannel.open(trace, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(Chip8Tracer.RECORD_SIZE * 4096);
+            buffer.limit(Chip8Tracer.HEADER_SIZE);
+            fill(channel, buffer);
+            buffer.flip();
+            if (buffer.remaining() < Chip8Tracer.HEADER_SIZE || buffer.getInt() != Chip8Tracer.MAGIC
+                    || buffer.getShort() != Chip8Tracer.VERSION || buffer.getShort() != Chip8Tracer.RECORD_SIZE) {
+                throw new IOException(String.format("%s is not a version %d trace", trace, Chip8Tracer.VERSION));
+            }
+            long records = 0;
+            buffer.clear();
+            while (fill(channel, buffer)) {
+                buffer.flip();
+                while (buffer.remaining() >= Chip8Tracer.RECORD_SIZE) {
+                    long cycle = buffer.getLong();
+                    short pc = buffer.getShort();
+                    short opcode = buffer.getShort();
+                    short i = buffer.getShort();
+                    int register = buffer.get() & 0xff;
+                    int value = buffer.get() & 0xff;
+                    out.write(String.format("%12d  %03x  %04x  %-16s I=%03x", cycle, pc & 0xffff, opcode & 0xffff,
+                            Chip8Disassembler.mnemonic(opcode, set), i & 0xffff));
+                    if (register != Chip8Tracer.NO_REGISTER) {
+                        out.write(String.format("  V%x=%02x", register, value));
+                    }
+                    out.write('\n');
+                    records++;
+                }
+                buffer.compact();
+            }
+            return records;
+        }
+    }
+
+    // reads until buffer is full or the file ends; false once nothing more was read
+    private static boolean fill(FileChannel channel, ByteBuffer buffer) throws IOException {
+        int start = buffer.position();
+        while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+        }
+        return buffer.position() > start;
+    }
+
+    public static void main(String[] args) throws IOException {
+        Path trace = null;
+        Chip8QuirkProfile quirks = Chip8QuirkProfile.DEFAULT;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--quirks") && i + 1 < args.length) {
+                quirks = Chip8QuirkProfile.named(args[++i]);
+            } else if (trace == null) {
+                trace = Paths.get(args[i]);
+            } else {
+                trace = null;
+                break;
+            }
+        }
+        if (trace == null) {
+            System.err.println("usage: Chip8TraceDecoder <trace> [--quirks profile]");
+            System.exit(2);
+        }
+        Writer out = new BufferedWriter(new OutputStreamWriter(System.out));
+        decode(trace, quirks.instructionSet, out);
+        out.flush();
+    }
+}
@@ -0,0 +1,188 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/* Writes a binary trace of every executed instruction to a file. The
+   machine thread puts fixed size records into a ring buffer and a flusher
+   thread writes them out through a FileChannel, so the machine never waits
+   on the disk unless the ring fills up. There is exactly one producer and
+   one consumer, so the ring needs no locks: each side only advances its own
+   counter and reads the other's.
+
+   The file starts with a header of the magic "C8TR", a version and the
+   record size, followed by RECORD_SIZE byte big endian records:
+     long cycle, short PC, short opcode, short I,
+     byte register the instruction wrote (0xff for none), byte its new value
+   Chip8TraceDecoder prints them back as text.
+ */
+public class Chip8Tracer implements AutoCloseable {
+    static final int MAGIC = 0x43385452;
+    static final short VERSION = 1;
+    static final int HEADER_SIZE = 4 + 2 + 2;
+    static final int RECORD_SIZE = 16;
+    static final int NO_REGISTER = 0xff;
+    public static final int DEFAULT_CAPACITY = 1 << 16;
+    // how long the flusher sleeps when the ring is empty
+    private static final long IDLE_NANOS = 200_000;
+
+    private final ByteBuffer ring;
+    private final long capacity;
+    private final long mask;
+    private final FileChannel channel;
+    private final Thread flusher;
+    // records written by the machine thread and records flushed, both ever increasing
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong head = new AtomicLong();
+    // the machine thread's last look at head, so it only reads it when the ring seems full
+    private long cachedHead = 0;
+    private volatile boolean closed = false;
+    private volatile IOException failure;
+
+    /* capacity is the number of records the ring holds and must be a power of two */
+    public Chip8Tracer(Path file, int capacity) throws IOException {
+        if (capacity < 2 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException(String.format("capacity %d is not a power of two", capacity));
+        }
+        this.capacity = capacity;
+        this.mask = capacity - 1;
+        ring = ByteBuffer.allocateDirect(capacity * RECORD_SIZE).order(ByteOrder.BIG_ENDIAN);
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putShort(VERSION).putShort((short) RECORD_SIZE).flip();
+        while (header.hasRemaining()) {
+            channel.write(header);
+        }
+        flusher = new Thread(this::flushLoop, "chip8-trace");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    public Chip8Tracer(Path file) throws IOException {
+        this(file, DEFAULT_CAPACITY);
+    }
+
+    /* the register an instruction leaves a result in, or NO_REGISTER; for
+       LD Vx, [I] and the like the last of the ones loaded */
+    static int writtenRegister(Chip8Instruction instruction) {
+        switch (instruction.handler) {
+            case Chip8Instruction.LD_VX_KK:
+            case Chip8Instruction.ADD_VX_KK:
+            case Chip8Instruction.LD_VX_VY:
+            case Chip8Instruction.OR_VX_VY:
+            case Chip8Instruction.AND_VX_VY:
+            case Chip8Instruction.XOR_VX_VY:
+            case Chip8Instruction.OR_VX_VY_RESET_VF:
+            case Chip8Instruction.AND_VX_VY_RESET_VF:
+            case Chip8Instruction.XOR_VX_VY_RESET_VF:
+            case Chip8Instruction.ADD_VX_VY:
+            case Chip8Instruction.SUB_VX_VY:
+            case Chip8Instruction.SHR_VX:
+            case Chip8Instruction.SUBN_VX_VY:
+            case Chip8Instruction.SHL_VX:
+            case Chip8Instruction.RND_VX_KK:
+            case Chip8Instruction.LD_VX_DT:
+            case Chip8Instruction.LD_VX_MEM:
+            case Chip8Instruction.LD_VX_R:
+                return instruction.x;
+            case Chip8Instruction.LOAD_VX_VY:
+                return instruction.y;
+            case Chip8Instruction.DRW_VX_VY_N:
+            case Chip8Instruction.DRW_VX_VY_N_CLIP:
+            case Chip8Instruction.DRW_EXTENDED:
+            case Chip8Instruction.DRW_EXTENDED_CLIP:
+                return 0xF;
+            default:
+                return NO_REGISTER;
+        }
+    }
+
+    /* machine thread only */
+    void record(long cycle, short pc, short opcode, short i, int register, int value) {
+        long t = tail.get();
+        if (t - cachedHead >= capacity) {
+            waitForSpace(t);
+        }
+        int at = (int) (t & mask) * RECORD_SIZE;
+        ring.putLong(at, cycle);
+        ring.putShort(at + 8, pc);
+        ring.putShort(at + 10, opcode);
+        ring.putShort(at + 12, i);
+        ring.put(at + 14, (byte) register);
+        ring.put(at + 15, (byte) value);
+        // publishes the record to the flusher
+        tail.lazySet(t + 1);
+        if ((t & (mask >> 1)) == 0) {
+            // half the ring has filled since the last nudge
+            LockSupport.unpark(flusher);
+        }
+    }
+
+    private void waitForSpace(long t) {
+        cachedHead = head.get();
+        while (t - cachedHead >= capacity) {
+            if (closed || failure != null) {
+                throw new IllegalStateException("trace is closed", failure);
+            }
+            LockSupport.unpark(flusher);
+            LockSupport.parkNanos(IDLE_NANOS / 10);
+            cachedHead = head.get();
+        }
+    }
+
+    private void flushLoop() {
+        ByteBuffer view = ring.duplicate();
+        try {
+            while (true) {
+                boolean last = closed;
+                long h = head.get();
+                long t = tail.get();
+                if (h == t) {
+                    if (last) {
+                        return;
+                    }
+                    LockSupport.parkNanos(this, IDLE_NANOS);
+                    continue;
+                }
+                // up to the end of the ring; the rest goes on the next pass
+                long end = Math.min(t, (h | mask) + 1);
+                view.limit((int) (((end - 1) & mask) + 1) * RECORD_SIZE);
+                view.position((int) (h & mask) * RECORD_SIZE);
+                while (view.hasRemaining()) {
+                    channel.write(view);
+                }
+                head.lazySet(end);
+            }
+        } catch (IOException e) {
+            failure = e;
+        }
+    }
+
+    /* records written so far, including any still in the ring */
+    public long getRecordCount() {
+        return tail.get();
+    }
+
+    /* writes out whatever is still in the ring and closes the file; called
+       once the machine has stopped recording */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        LockSupport.unpark(flusher);
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            channel.close();
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+}
@@ -1,49 +1,237 @@
+
 import javax.swing.*;
 import java.awt.*;
+import java.awt.image.BufferStrategy;
+import java.awt.image.BufferedImage;
+import java.awt.event.KeyAdapter;
+import java.awt.event.KeyEvent;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.concurrent.locks.LockSupport;
 
-public class Screen extends JPanel {
-    private static Chip8ScreenData screenData;
-    private static Chip8KeyPad keyPad;
+/* Renders frames published by the emulator thread. A dedicated render thread
+   presents the newest frame through a BufferStrategy at the display's refresh
+   rate, so rendering cost doesn't depend on how fast the emulator runs.
+   Frames are kept in a screen sized image that only has its dirty rows
+   redrawn, and the image is scaled to the window with a single drawImage.
+   XO-CHIP's two bitplanes make four colors, a pixel's color picked by its
+   bit in each plane.
+ */
+public class Screen extends Canvas {
     private static final Color foregroundColor = Color.GREEN;
     private static final Color backgroundColor = Color.BLACK;
+    // indexed by the first plane's bit plus twice the second's
+    private static final int[] paletteRGB = {backgroundColor.getRGB(), foregroundColor.getRGB(),
+            Color.ORANGE.getRGB(), Color.WHITE.getRGB()};
+    private static final int DEFAULT_REFRESH_RATE = 60;
     private static int renderWidth = 64*20;
     private static int renderHeight = 32*20;
 
-    private static int blockWidth;
-    private static int blockHeight;
+    private final Chip8FrameExchange frames;
+    private volatile boolean running;
+    // set when AWT asks for a repaint so the render thread presents again
+    private volatile boolean presentRequested = true;
+    private volatile Chip8Metrics metrics;
+
+    // only touched by whichever thread renders
+    private BufferedImage image;
+    private int[] rowPixels;
+    private long imageSequence = -1;
 
-    public static void main(String[] args) {
+    public Screen(Chip8FrameExchange frames) {
+        this.frames = frames;
+        setIgnoreRepaint(true);
+        setFocusable(false);
+        setBackground(backgroundColor);
+    }
+
+    /* -Dchip8.record=file records the session for Chip8InputReplay. Otherwise
+       holding backspace rewinds through the last minutes of play.
+       -Dchip8.quirks=profile picks a Chip8QuirkProfile. */
+    public static void main(String[] args) throws IOException {
         JFrame frame = new JFrame("chip8");
-        frame.add(new Screen());
+        String quirks = System.getProperty("chip8.quirks");
+        Chip8Machine c8Machine = new Chip8Machine(
+                quirks != null ? Chip8QuirkProfile.named(quirks) : Chip8QuirkProfile.DEFAULT);
+        Chip8ScreenData screenData = c8Machine.getScreenData();
+        Chip8FrameExchange frames = new Chip8FrameExchange();
+        Screen screen = new Screen(frames);
+        frame.add(screen);
         frame.setSize(renderWidth, renderHeight);
         frame.setVisible(true);
-        frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
-        Chip8Machine c8Machine = new Chip8Machine();
-        screenData = c8Machine.getScreenData();
-        blockWidth = (int)Math.floor(renderWidth / screenData.getWidth());
-        blockHeight = (int)Math.floor(renderHeight / screenData.getHeight());
-        frame.addKeyListener(c8Machine.getKeyPad());
-        c8Machine.loadRomFile(new File("C:\\Users\\Alex\\Chip8Emulator\\ROMS\\INVADERS.ch8"));
-        while(true) {
-            c8Machine.step();
-            frame.repaint();
+        String record = System.getProperty("chip8.record");
+        // when recording, keys reach the machine through the recorder at frame boundaries
+        Chip8KeyPad input = record != null ? new Chip8KeyPad() : c8Machine.getKeyPad();
+        frame.setDefaultCloseOperation(record != null ? JFrame.DO_NOTHING_ON_CLOSE : JFrame.EXIT_ON_CLOSE);
+        frame.addKeyListener(new Chip8KeyboardListener(input));
+        if (Boolean.getBoolean("chip8.metrics")) {
+            Chip8Metrics metrics = new Chip8Metrics().register();
+            c8Machine.setMetrics(metrics);
+            screen.setMetrics(metrics);
+        }
+        File rom = new File("C:\\Users\\Alex\\Chip8Emulator\\ROMS\\INVADERS.ch8");
+        try {
+            c8Machine.loadRomFile(rom);
+        } catch (IOException e) {
+            System.err.println(String.format("could not load %s: %s", rom, e.getMessage()));
+            System.exit(1);
+        }
+        screen.startRenderLoop();
+        Chip8Scheduler scheduler = new Chip8Scheduler(c8Machine);
+        // the scheduler paces frames in real time, so timers tied to its instruction budget tick at 60Hz
+        c8Machine.getTimers().setCycleMode(scheduler.getInstructionsPerFrame());
+        scheduler.setFrameListener(() -> frames.publish(screenData));
+        if (record == null) {
+            scheduler.setRewind(new Chip8Rewind(c8Machine));
+            frame.addKeyListener(new KeyAdapter() {
+                @Override
+                public void keyPressed(KeyEvent e) {
+                    if (e.getKeyCode() == KeyEvent.VK_BACK_SPACE) {
+                        scheduler.setRewinding(true);
+                    }
+                }
+
+                @Override
+                public void keyReleased(KeyEvent e) {
+                    if (e.getKeyCode() == KeyEvent.VK_BACK_SPACE) {
+                        scheduler.setRewinding(false);
+                    }
+                }
+            });
+            scheduler.run();
+            return;
+        }
+        try (Chip8InputRecorder recorder = new Chip8InputRecorder(c8Machine, input, Paths.get(record))) {
+            scheduler.setInputSource(recorder);
+            frame.addWindowListener(new WindowAdapter() {
+                @Override
+                public void windowClosing(WindowEvent e) {
+                    scheduler.stop();
+                }
+            });
+            scheduler.run();
+        }
+        System.exit(0);
+    }
+
+    /* records how long each present takes into metrics' render times */
+    public void setMetrics(Chip8Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public void startRenderLoop() {
+        running = true;
+        Thread renderThread = new Thread(this::renderLoop, "chip8-render");
+        renderThread.setDaemon(true);
+        renderThread.start();
+    }
+
+    public void stopRenderLoop() {
+        running = false;
+    }
+
+    private void renderLoop() {
+        createBufferStrategy(2);
+        BufferStrategy strategy = getBufferStrategy();
+        long period = 1_000_000_000L / refreshRate();
+        long presentedSequence = -1;
+        long deadline = System.nanoTime();
+        while (running) {
+            Chip8FrameExchange.Frame frame = frames.latest();
+            if (frame.getSequence() != presentedSequence || presentRequested) {
+                presentRequested = false;
+                present(strategy, frame);
+                presentedSequence = frame.getSequence();
+            }
+            deadline += period;
+            long remaining = deadline - System.nanoTime();
+            if (remaining > 0) {
+                LockSupport.parkNanos(remaining);
+            } else {
+                deadline = System.nanoTime();
+            }
+        }
+    }
+
+    private void present(BufferStrategy strategy, Chip8FrameExchange.Frame frame) {
+        Chip8Metrics metrics = this.metrics;
+        long start = metrics != null ? System.nanoTime() : 0;
+        do {
+            do {
+                Graphics2D g2d = (Graphics2D) strategy.getDrawGraphics();
+                try {
+                    render(g2d, frame);
+                } finally {
+                    g2d.dispose();
+                }
+            } while (strategy.contentsRestored());
+            strategy.show();
+        } while (strategy.contentsLost());
+        Toolkit.getDefaultToolkit().sync();
+        if (metrics != null) {
+            metrics.getRenderTimes().record(System.nanoTime() - start);
+        }
+    }
+
+    private int refreshRate() {
+        GraphicsConfiguration configuration = getGraphicsConfiguration();
+        if (configuration != null) {
+            int rate = configuration.getDevice().getDisplayMode().getRefreshRate();
+            if (rate != DisplayMode.REFRESH_RATE_UNKNOWN) {
+                return rate;
+            }
         }
+        return DEFAULT_REFRESH_RATE;
     }
 
     @Override
     public void paint(Graphics g) {
-        Graphics2D g2d = (Graphics2D)g;
-        for(int y=0; y < screenData.getHeight(); y++) {
-            for(int x=0; x < screenData.getWidth(); x++) {
-                if(screenData.getPixelValue(x, y)) {
-                    g2d.setColor(foregroundColor);
-                    g2d.fillRect(x*blockWidth, y*blockHeight, blockWidth, blockHeight);
-                } else {
-                    g2d.setColor(backgroundColor);
-                    g2d.fillRect(x*blockWidth, y*blockHeight, blockWidth, blockHeight);
+        presentRequested = true;
+    }
+
+    public void render(Graphics2D g2d, Chip8FrameExchange.Frame frame) {
+        updateImage(frame);
+        // whole pixels, so hi-res frames get blocks half the size
+        int blockWidth = renderWidth / frame.getWidth();
+        int blockHeight = renderHeight / frame.getHeight();
+        g2d.drawImage(image, 0, 0, frame.getWidth()*blockWidth, frame.getHeight()*blockHeight, null);
+    }
+
+    private void updateImage(Chip8FrameExchange.Frame frame) {
+        int width = frame.getWidth();
+        int height = frame.getHeight();
+        long dirty;
+        if (image == null || image.getWidth() != width || image.getHeight() != height) {
+            image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+            rowPixels = new int[width];
+            dirty = -1L;
+        } else if (frame.getSequence() == imageSequence) {
+            dirty = 0;
+        } else if (frame.getSequence() == imageSequence + 1) {
+            dirty = frame.getDirtyRows();
+        } else {
+            // frames were dropped on the way, so their dirty rows are unknown
+            dirty = -1L;
+        }
+        if (height < 64) {
+            dirty &= (1L << height) - 1;
+        }
+        while (dirty != 0) {
+            int y = Long.numberOfTrailingZeros(dirty);
+            dirty &= dirty - 1;
+            for (int x = 0; x < width; x++) {
+                long bit = Long.MIN_VALUE >>> x;
+                int color = (frame.getRowWord(0, y, x >> 6) & bit) != 0 ? 1 : 0;
+                if (frame.getPlanes() > 1 && (frame.getRowWord(1, y, x >> 6) & bit) != 0) {
+                    color |= 2;
                 }
+                rowPixels[x] = paletteRGB[color];
             }
+            image.setRGB(0, y, width, 1, rowPixels, 0, width);
         }
+        imageSequence = frame.getSequence();
     }
 }
\ No newline at end of file
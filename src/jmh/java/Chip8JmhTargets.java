@@ -0,0 +1,98 @@
+import chip8.jmh.Chip8Targets;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+
+/* The default package side of chip8.jmh.Chip8Targets: each nested class
+   wraps the emulator code one benchmark measures. */
+public class Chip8JmhTargets {
+    public static class Machine implements Chip8Targets.Machine {
+        private final Chip8Machine machine = new Chip8Machine();
+
+        public Machine(String rom, String engine) throws IOException {
+            machine.setExecutionEngine(Chip8ExecutionEngine.valueOf(engine));
+            // the same RND sequence on every run
+            machine.setRandomSeed(1);
+            machine.loadRom(readRom(rom));
+        }
+
+        @Override
+        public long run(int budget) {
+            return machine.run(budget) + machine.getCycles();
+        }
+    }
+
+    public static class ScreenData implements Chip8Targets.ScreenData {
+        private static final int[] SPRITE = {0xf0, 0x90, 0xf0, 0x90, 0xf0};
+
+        private final Chip8ScreenData screenData = new Chip8ScreenData();
+
+        @Override
+        public boolean fillOutSprite(int position) {
+            return screenData.fillOutSprite(SPRITE, position & 0x3f, (position >> 6) & 0x1f);
+        }
+
+        @Override
+        public long clearScreen() {
+            screenData.clearScreen();
+            return screenData.getRow(0);
+        }
+    }
+
+    /* Chip8Memory(int) keeps its bytes in a Chip8HeapMemoryStore, the store
+       machines run on unless given another */
+    public static class Memory implements Chip8Targets.Memory {
+        private final Chip8Memory memory = new Chip8Memory(Chip8Machine.DEFAULT_MEMORY_SIZE);
+
+        @Override
+        public short getInstructionAt(int idx) {
+            return memory.getInstructionAt(idx);
+        }
+
+        @Override
+        public short readMemory(int idx) {
+            return memory.readMemory(idx);
+        }
+
+        @Override
+        public void writeMemory(int idx, short value) {
+            memory.writeMemory(idx, value);
+        }
+    }
+
+    public static class InstructionString implements Chip8Targets.InstructionString {
+        @Override
+        public String getInstructionString(short instruction) {
+            return Chip8Machine.getInstructionString(instruction);
+        }
+    }
+
+    /* Screen.render at the window's default 20x scale; paint only asks the
+       render loop for a frame, render is where the drawing happens */
+    public static class ScreenRender implements Chip8Targets.ScreenRender {
+        private final Chip8FrameExchange frames = new Chip8FrameExchange();
+        private final Screen screen = new Screen(frames);
+        private final Graphics2D g2d = new BufferedImage(64 * 20, 32 * 20, BufferedImage.TYPE_INT_RGB).createGraphics();
+        private final Chip8ScreenData drawn = new Chip8ScreenData();
+
+        @Override
+        public int render(int position) {
+            // one changed row per frame, as most games draw
+            drawn.drawSpriteRow(0xff, position & 0x3f, (position >> 6) & 0x1f);
+            frames.publish(drawn);
+            screen.render(g2d, frames.latest());
+            return position;
+        }
+    }
+
+    private static byte[] readRom(String name) throws IOException {
+        try (InputStream in = Chip8JmhTargets.class.getResourceAsStream("/roms/" + name + ".ch8")) {
+            if (in == null) {
+                throw new IOException(String.format("no bundled rom %s", name));
+            }
+            return in.readAllBytes();
+        }
+    }
+}
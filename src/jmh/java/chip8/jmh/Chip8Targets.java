@@ -0,0 +1,73 @@
+package chip8.jmh;
+
+import java.util.Arrays;
+
+/* JMH only runs benchmarks that are in a named package, and a named package
+   can't refer to the emulator's classes in the default package. Each
+   benchmark therefore drives the emulator through one of these interfaces,
+   implemented by the matching nested class of Chip8JmhTargets in the default
+   package and created once per trial. Every benchmark is forked on its own,
+   so each call site only ever sees one implementation and the JIT inlines
+   through it. */
+public final class Chip8Targets {
+    private static final String IMPLEMENTATIONS = "Chip8JmhTargets$";
+
+    /* a machine running one of the ROMs in src/jmh/resources/roms */
+    public interface Machine {
+        /* runs budget instructions through Chip8Machine.step */
+        long run(int budget);
+    }
+
+    public interface ScreenData {
+        boolean fillOutSprite(int position);
+
+        long clearScreen();
+    }
+
+    public interface Memory {
+        short getInstructionAt(int idx);
+
+        short readMemory(int idx);
+
+        void writeMemory(int idx, short value);
+    }
+
+    public interface InstructionString {
+        String getInstructionString(short instruction);
+    }
+
+    /* Screen drawing into an offscreen image */
+    public interface ScreenRender {
+        int render(int position);
+    }
+
+    private Chip8Targets() {
+    }
+
+    static Machine machine(String rom, String engine) throws ReflectiveOperationException {
+        return create(Machine.class, "Machine", rom, engine);
+    }
+
+    static ScreenData screenData() throws ReflectiveOperationException {
+        return create(ScreenData.class, "ScreenData");
+    }
+
+    static Memory memory() throws ReflectiveOperationException {
+        return create(Memory.class, "Memory");
+    }
+
+    static InstructionString instructionString() throws ReflectiveOperationException {
+        return create(InstructionString.class, "InstructionString");
+    }
+
+    static ScreenRender screenRender() throws ReflectiveOperationException {
+        return create(ScreenRender.class, "ScreenRender");
+    }
+
+    private static <T> T create(Class<T> type, String name, String... args) throws ReflectiveOperationException {
+        Class<?>[] parameters = new Class<?>[args.length];
+        Arrays.fill(parameters, String.class);
+        Object target = Class.forName(IMPLEMENTATIONS + name).getConstructor(parameters).newInstance((Object[]) args);
+        return type.cast(target);
+    }
+}
@@ -0,0 +1,36 @@
+package chip8.jmh;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/* Chip8Machine.getInstructionString over opcodes spread across every group */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(2)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class InstructionStringBenchmark {
+    private Chip8Targets.InstructionString instructions;
+    private int opcode;
+
+    @Setup
+    public void setUp() throws ReflectiveOperationException {
+        instructions = Chip8Targets.instructionString();
+    }
+
+    @Benchmark
+    public String getInstructionString() {
+        return instructions.getInstructionString((short) (opcode += 0x1235));
+    }
+}
@@ -0,0 +1,52 @@
+package chip8.jmh;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/* Chip8Machine.step throughput, in instructions per second, on the ROMs in
+   src/jmh/resources/roms:
+     pong  a ball and two paddles, redrawn once a frame; waits on the delay
+           timer in between, as most games do
+     maze  the classic random maze, a DRW for every RND
+     sort  bubble sorts 16 random bytes with LD [I] and LD Vx, [I] and shows them
+   All three run forever without input. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(2)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class MachineStepBenchmark {
+    private static final int STEPS = 1000;
+
+    @Param({"pong", "maze", "sort"})
+    public String rom;
+
+    @Param({"INTERPRETER", "JIT", "SUPERINSTRUCTIONS"})
+    public String engine;
+
+    private Chip8Targets.Machine machine;
+
+    @Setup
+    public void setUp() throws ReflectiveOperationException {
+        machine = Chip8Targets.machine(rom, engine);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(STEPS)
+    public long step() {
+        return machine.run(STEPS);
+    }
+}
@@ -0,0 +1,49 @@
+package chip8.jmh;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/* Chip8Memory on the heap store, the one machines use by default, stepping
+   through every address */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(2)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class MemoryBenchmark {
+    private Chip8Targets.Memory memory;
+    private int address;
+
+    @Setup
+    public void setUp() throws ReflectiveOperationException {
+        memory = Chip8Targets.memory();
+    }
+
+    @Benchmark
+    public short getInstructionAt() {
+        return memory.getInstructionAt(address++ & 0xffe);
+    }
+
+    @Benchmark
+    public short readMemory() {
+        return memory.readMemory(address++ & 0xfff);
+    }
+
+    @Benchmark
+    public int writeMemory() {
+        int a = address++ & 0xfff;
+        memory.writeMemory(a, (short) a);
+        return a;
+    }
+}
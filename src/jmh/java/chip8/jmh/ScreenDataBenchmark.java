@@ -0,0 +1,42 @@
+package chip8.jmh;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/* Chip8ScreenData.fillOutSprite, walking a 4x5 sprite across the screen, and
+   clearScreen */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(2)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ScreenDataBenchmark {
+    private Chip8Targets.ScreenData screenData;
+    private int position;
+
+    @Setup
+    public void setUp() throws ReflectiveOperationException {
+        screenData = Chip8Targets.screenData();
+    }
+
+    @Benchmark
+    public boolean fillOutSprite() {
+        return screenData.fillOutSprite(position++);
+    }
+
+    @Benchmark
+    public long clearScreen() {
+        return screenData.clearScreen();
+    }
+}
@@ -0,0 +1,36 @@
+package chip8.jmh;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/* Screen drawing a freshly published frame into an offscreen Graphics2D */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(2)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ScreenRenderBenchmark {
+    private Chip8Targets.ScreenRender screen;
+    private int position;
+
+    @Setup
+    public void setUp() throws ReflectiveOperationException {
+        screen = Chip8Targets.screenRender();
+    }
+
+    @Benchmark
+    public int render() {
+        return screen.render(position++);
+    }
+}